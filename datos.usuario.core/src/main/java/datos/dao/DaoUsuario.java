@@ -1,14 +1,17 @@
 package datos.dao;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 
-import static datos.utils.FluentMap.Map;
-import static datos.utils.FluentMap.entry;
 import datos.utils.GenericJpaDAO;
+import datos.utils.QueryParameter;
 import datos.modelo.AbstractUsuario;
 
 public class DaoUsuario extends GenericJpaDAO<AbstractUsuario, String>{
 
+	// parametro de usuario.buscarPorNumDocumento
+	private static final QueryParameter<String> NUM_DOCUMENTO = QueryParameter.named("numDocumento", String.class);
+	
 	// == constructores
 	
 	public DaoUsuario() { }
@@ -17,12 +20,53 @@ public class DaoUsuario extends GenericJpaDAO<AbstractUsuario, String>{
 		super(em);
 	}
 	
+	public DaoUsuario(EntityManagerFactory factory) {
+		super(factory);
+	}
+	
+	// == filtro de documentos
+	
+	/**
+	 * Document filter of the factory of this dao, shared by every DaoUsuario of
+	 * the factory, or <code>null</code> if it has none. When there is one,
+	 * buscarPorNumDocumento and existePorNumDocumento answer without a query,
+	 * outside transactions, for the document numbers it does not contain.
+	 */
+	public FiltroDocumentos getFiltroDocumentos() {
+		return FiltroDocumentos.de(getEntityManagerFactory());
+	}
+	
+	/**
+	 * Builds the document number filter of the factory of this dao streaming the
+	 * whole table, and starts using it (see FiltroDocumentos).
+	 */
+	public FiltroDocumentos construirFiltroDocumentos(long numeroEsperado, double probabilidadFalsoPositivo) {
+		return FiltroDocumentos.construir(this, numeroEsperado, probabilidadFalsoPositivo);
+	}
+	
+	// el filtro descarta el documento; no se usa en una transaccion, cuyos cambios pueden no estar escritos
+	private boolean descartado(String numDocumento) {
+		if (isTransactionActive()) {
+			return false;
+		}
+		FiltroDocumentos filtro = getFiltroDocumentos();
+		return filtro != null && !filtro.mightContain(numDocumento);
+	}
+	
 	// == consultas
 	
-	@SuppressWarnings("unchecked")
 	public AbstractUsuario buscarPorNumDocumento(String numDocumento) {
-		return executeSingleResultNamedQuery("usuario.buscarPorNumDocumento", 
-				Map( entry("numDocumento", numDocumento) ));
+		if (descartado(numDocumento)) {
+			return null;
+		}
+		return executeSingleResultNamedQuery("usuario.buscarPorNumDocumento", NUM_DOCUMENTO, numDocumento);
+	}
+	
+	public boolean existePorNumDocumento(String numDocumento) {
+		if (descartado(numDocumento)) {
+			return false;
+		}
+		return existsBy("numDocumento", numDocumento);
 	}
 	
 }
@@ -0,0 +1,31 @@
+package datos.dao;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import datos.modelo.AbstractUsuario;
+import datos.utils.AsyncDAO;
+
+public class DaoUsuarioAsync extends AsyncDAO<DaoUsuario, AbstractUsuario, String> {
+
+	// == constructores
+	
+	/**
+	 * @param daoFactory creates the dao of each task, bound to the concrete
+	 *        user entity (DaoUsuario works on the mapped superclass)
+	 */
+	public DaoUsuarioAsync(EntityManagerFactory factory, Function<EntityManager, DaoUsuario> daoFactory, 
+			int threads, int queueCapacity) {
+		super(factory, daoFactory, threads, queueCapacity);
+	}
+	
+	// == consultas
+	
+	public CompletableFuture<AbstractUsuario> buscarPorNumDocumentoAsync(String numDocumento) {
+		return submit(dao -> dao.buscarPorNumDocumento(numDocumento));
+	}
+	
+}
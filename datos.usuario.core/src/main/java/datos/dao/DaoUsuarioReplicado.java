@@ -0,0 +1,37 @@
+package datos.dao;
+
+import java.util.List;
+import java.util.function.Function;
+
+import javax.persistence.EntityManagerFactory;
+
+import datos.modelo.AbstractUsuario;
+import datos.utils.ReplicatedDAO;
+
+/**
+ * Users read from replicas and written to the primary persistence unit.
+ */
+public class DaoUsuarioReplicado extends ReplicatedDAO<DaoUsuario, AbstractUsuario, String> {
+
+	// == constructores
+	
+	/**
+	 * @param daoFactory creates the dao of each unit, bound to the concrete
+	 *        user entity (DaoUsuario works on the mapped superclass)
+	 */
+	public DaoUsuarioReplicado(EntityManagerFactory primary, List<EntityManagerFactory> replicas, 
+			Function<EntityManagerFactory, DaoUsuario> daoFactory) {
+		super(primary, replicas, daoFactory);
+	}
+	
+	// == consultas
+	
+	public AbstractUsuario buscarPorNumDocumento(String numDocumento) {
+		return read(dao -> dao.buscarPorNumDocumento(numDocumento));
+	}
+	
+	public boolean existePorNumDocumento(String numDocumento) {
+		return read(dao -> dao.existePorNumDocumento(numDocumento));
+	}
+	
+}
@@ -0,0 +1,62 @@
+package datos.dao;
+
+import java.util.List;
+import java.util.function.Function;
+
+import javax.persistence.EntityManagerFactory;
+
+import datos.modelo.AbstractUsuario;
+import datos.utils.ShardFunction;
+import datos.utils.ShardedDAO;
+
+/**
+ * Users split by the branch prefix of their codigo (<code>100-01</code>,
+ * <code>200-01</code>...) over several persistence units.
+ */
+public class DaoUsuarioShards extends ShardedDAO<DaoUsuario, AbstractUsuario, String> {
+
+	// == constructores
+	
+	/**
+	 * Keeps the users of each branch in the same shard.
+	 * @param daoFactory creates the dao of each shard, bound to the concrete
+	 *        user entity (DaoUsuario works on the mapped superclass)
+	 */
+	public DaoUsuarioShards(List<EntityManagerFactory> factories, Function<EntityManagerFactory, DaoUsuario> daoFactory) {
+		this(factories, daoFactory, ShardFunction.prefix("-"));
+	}
+	
+	public DaoUsuarioShards(List<EntityManagerFactory> factories, Function<EntityManagerFactory, DaoUsuario> daoFactory, 
+			ShardFunction<String> shardFunction) {
+		super(factories, daoFactory, shardFunction);
+	}
+	
+	// == consultas
+	
+	/**
+	 * Looks for the document in every shard in parallel; each shard answers
+	 * from the document filter of its own factory when it has one (see
+	 * {@link #construirFiltrosDocumentos}).
+	 */
+	public AbstractUsuario buscarPorNumDocumento(String numDocumento) {
+		for (AbstractUsuario usuario : scatter(dao -> dao.buscarPorNumDocumento(numDocumento))) {
+			if (usuario != null) {
+				return usuario;
+			}
+		}
+		return null;
+	}
+	
+	public boolean existePorNumDocumento(String numDocumento) {
+		return scatter(dao -> dao.existePorNumDocumento(numDocumento)).contains(Boolean.TRUE);
+	}
+	
+	/**
+	 * Builds the document filter of every shard, each one from its own table.
+	 * @param numeroEsperado users expected in each shard
+	 */
+	public List<FiltroDocumentos> construirFiltrosDocumentos(long numeroEsperado, double probabilidadFalsoPositivo) {
+		return scatter(dao -> dao.construirFiltroDocumentos(numeroEsperado, probabilidadFalsoPositivo));
+	}
+	
+}
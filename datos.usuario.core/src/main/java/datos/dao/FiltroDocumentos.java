@@ -0,0 +1,112 @@
+package datos.dao;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManagerFactory;
+
+import datos.modelo.AbstractUsuario;
+import datos.utils.BloomFilter;
+import datos.utils.ChangeEvent;
+import datos.utils.ChangeEventListener;
+import datos.utils.ChangePublisher;
+
+/**
+ * Bloom filter of the document numbers of the users of one persistence unit,
+ * so lookups of document numbers that do not exist answer without a query.
+ * There is at most one filter per EntityManagerFactory, shared by every
+ * DaoUsuario of that factory (see {@link #de(EntityManagerFactory)}).
+ * <p>
+ * It is built streaming the table and, until it is closed, every user written
+ * in its persistence unit through any EntityManager is added when it is flushed
+ * (the listener of {@link ChangePublisher} that sees the writes before their
+ * commit; the unit must install {@link ChangeEventListener}). Writes of other
+ * units are ignored. A number written by a rolled back transaction, deleted or
+ * changed stays in the filter and only causes false positives, answered by the query.
+ * <p>
+ * Writes that are not flushed yet are not in the filter: it must only be used
+ * outside transactions.
+ */
+public class FiltroDocumentos {
+	
+	private static final Map<EntityManagerFactory, FiltroDocumentos> filtros = 
+			new ConcurrentHashMap<EntityManagerFactory, FiltroDocumentos>();
+	
+	private final EntityManagerFactory factory;
+	
+	private final String unit;
+	
+	private final BloomFilter filtro;
+	
+	private final Consumer<ChangeEvent> listener = this::registrar;
+	
+	
+	// == construccion
+	
+	private FiltroDocumentos(EntityManagerFactory factory, BloomFilter filtro) {
+		this.factory = factory;
+		this.unit = ChangeEventListener.unitName(factory);
+		this.filtro = filtro;
+	}
+	
+	/**
+	 * Builds the filter of the dao's factory streaming every user with the dao,
+	 * and starts using it in every DaoUsuario of the factory instead of the
+	 * previous one, which is closed. It subscribes to the flushed changes before
+	 * streaming, so users written meanwhile are not lost.
+	 */
+	public static FiltroDocumentos construir(DaoUsuario dao, long numeroEsperado, double probabilidadFalsoPositivo) {
+		EntityManagerFactory factory = dao.getEntityManagerFactory();
+		if (!ChangeEventListener.isInstalled(factory)) {
+			throw new IllegalStateException("The persistence unit does not publish change events: "
+					+ "install " + ChangeEventListener.class.getName());
+		}
+		FiltroDocumentos filtro = new FiltroDocumentos(factory, new BloomFilter(numeroEsperado, probabilidadFalsoPositivo));
+		ChangePublisher.getDefault().addFlushListener(filtro.listener);
+		try (Stream<AbstractUsuario> usuarios = dao.streamAll()) {
+			usuarios.forEach(usuario -> filtro.filtro.put(usuario.getNumDocumento()));
+		} catch (RuntimeException e) {
+			ChangePublisher.getDefault().removeFlushListener(filtro.listener);
+			throw e;
+		}
+		FiltroDocumentos anterior = filtros.put(factory, filtro);
+		if (anterior != null) {
+			anterior.cerrar();
+		}
+		return filtro;
+	}
+	
+	/**
+	 * Filter in use for the factory, or <code>null</code> if it has none.
+	 */
+	public static FiltroDocumentos de(EntityManagerFactory factory) {
+		return filtros.get(factory);
+	}
+	
+	/**
+	 * Stops using the filter and adding the written users to it.
+	 */
+	public void cerrar() {
+		filtros.remove(factory, this);
+		ChangePublisher.getDefault().removeFlushListener(listener);
+	}
+	
+	public boolean mightContain(String numDocumento) {
+		return filtro.mightContain(numDocumento);
+	}
+	
+	public BloomFilter getFiltro() {
+		return filtro;
+	}
+	
+	// agrega el documento de un usuario creado o modificado en la unidad del filtro
+	private void registrar(ChangeEvent event) {
+		if (event.getAfter() != null && unit.equals(event.getUnit()) 
+				&& AbstractUsuario.class.isAssignableFrom(event.getEntityClass())) {
+			filtro.put((String) event.getAfter().get("numDocumento"));
+		}
+	}
+	
+}
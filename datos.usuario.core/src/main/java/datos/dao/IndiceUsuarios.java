@@ -0,0 +1,148 @@
+package datos.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import datos.modelo.AbstractUsuario;
+import datos.utils.ChangeEvent;
+import datos.utils.ChangeEventListener;
+import datos.utils.ChangePublisher;
+import datos.utils.NGramIndex;
+
+/**
+ * Trigram index over nombre and direccion of the users, for "contains" and
+ * fuzzy searches without <code>LIKE '%x%'</code> table scans.
+ * <p>
+ * It is built streaming the table and kept up to date, until it is closed,
+ * with the committed changes published by {@link ChangePublisher} (the
+ * persistence unit must install {@link ChangeEventListener}); changes of other
+ * units are ignored, and a bulk deleteAll of the users empties the index.
+ * Rolled back changes are never indexed. The candidates are still read with
+ * one findByIds and checked again, since the index may lag behind a commit.
+ */
+public class IndiceUsuarios {
+
+	private final NGramIndex<String> indice = new NGramIndex<String>();
+	
+	private final String unit;
+	
+	private final Consumer<ChangeEvent> listener = this::aplicar;
+	
+	// ids cambiados mientras se construye: el stream puede traer su valor anterior
+	private volatile Set<String> cambiados = ConcurrentHashMap.newKeySet();
+	
+	
+	// == construccion
+	
+	private IndiceUsuarios(String unit) {
+		this.unit = unit;
+	}
+	
+	/**
+	 * Builds the index streaming every user with the dao and subscribes it to
+	 * the committed changes. It subscribes before streaming so changes committed
+	 * meanwhile are not lost; they win over the streamed rows.
+	 */
+	public static IndiceUsuarios construir(DaoUsuario dao) {
+		if (!ChangeEventListener.isInstalled(dao.getEntityManagerFactory())) {
+			throw new IllegalStateException("The persistence unit does not publish change events: "
+					+ "install " + ChangeEventListener.class.getName());
+		}
+		IndiceUsuarios indice = new IndiceUsuarios(ChangeEventListener.unitName(dao.getEntityManagerFactory()));
+		ChangePublisher.getDefault().addListener(indice.listener);
+		try (Stream<AbstractUsuario> usuarios = dao.streamAll()) {
+			usuarios.forEach(usuario -> {
+				if (!indice.cambiados.contains(usuario.getCodigo())) {
+					indice.indexar(usuario);
+				}
+			});
+		} catch (RuntimeException e) {
+			indice.cerrar();
+			throw e;
+		}
+		indice.cambiados = null;
+		return indice;
+	}
+	
+	/**
+	 * Stops updating the index.
+	 */
+	public void cerrar() {
+		ChangePublisher.getDefault().removeListener(listener);
+	}
+	
+	public void indexar(AbstractUsuario usuario) {
+		indice.put(usuario.getCodigo(), usuario.getNombre(), usuario.getDireccion());
+	}
+	
+	public void quitar(AbstractUsuario usuario) {
+		indice.remove(usuario.getCodigo());
+	}
+	
+	public NGramIndex<String> getIndice() {
+		return indice;
+	}
+	
+	
+	// == busquedas
+	
+	/**
+	 * Users whose nombre or direccion contains <code>texto</code>, ignoring case and accents.
+	 */
+	public List<AbstractUsuario> buscarTexto(DaoUsuario dao, String texto) {
+		String buscado = NGramIndex.normalize(texto);
+		List<AbstractUsuario> resultado = new ArrayList<AbstractUsuario>();
+		for (AbstractUsuario usuario : dao.findByIds(indice.containing(texto))) {
+			if (usuario != null && (contiene(usuario.getNombre(), buscado) || contiene(usuario.getDireccion(), buscado))) {
+				resultado.add(usuario);
+			}
+		}
+		return resultado;
+	}
+	
+	/**
+	 * Users whose nombre or direccion looks like <code>texto</code> (trigram
+	 * similarity of at least <code>similitud</code>, between 0 and 1), most similar first.
+	 */
+	public List<AbstractUsuario> buscarParecidos(DaoUsuario dao, String texto, double similitud, int maximo) {
+		List<AbstractUsuario> resultado = new ArrayList<AbstractUsuario>();
+		for (AbstractUsuario usuario : dao.findByIds(indice.similar(texto, similitud, maximo))) {
+			if (usuario != null) {
+				resultado.add(usuario);
+			}
+		}
+		return resultado;
+	}
+	
+	// aplica un cambio confirmado de un usuario
+	private void aplicar(ChangeEvent event) {
+		if (!unit.equals(event.getUnit()) || !AbstractUsuario.class.isAssignableFrom(event.getEntityClass())) {
+			return;
+		}
+		if (event.getType() == ChangeEvent.Type.CLEARED) {
+			indice.clear();
+			return;
+		}
+		String codigo = (String) event.getId();
+		Set<String> enConstruccion = cambiados;
+		if (enConstruccion != null) {
+			enConstruccion.add(codigo);
+		}
+		if (event.getType() == ChangeEvent.Type.REMOVED) {
+			indice.remove(codigo);
+		} else {
+			Map<String, Object> valores = event.getAfter();
+			indice.put(codigo, (String) valores.get("nombre"), (String) valores.get("direccion"));
+		}
+	}
+	
+	private static boolean contiene(String valor, String buscado) {
+		return valor != null && NGramIndex.normalize(valor).contains(buscado);
+	}
+	
+}
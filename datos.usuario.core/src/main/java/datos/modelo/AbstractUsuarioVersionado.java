@@ -0,0 +1,36 @@
+package datos.modelo;
+
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Version;
+
+
+/**
+ * Usuario with optimistic concurrency control. A variant whose Usuario extends
+ * this class gets a version column: concurrent updates of the same row fail
+ * at commit with OptimisticLockException instead of overwriting each other
+ * (see OptimisticRetryExecutor).
+ * <p>
+ * Updates must then start from an entity read from the database, or one that
+ * carries its current version: a freshly built Usuario, without version,
+ * cannot be merged over an existing row.
+ */
+@MappedSuperclass
+public class AbstractUsuarioVersionado extends AbstractUsuario {
+
+	// control de concurrencia optimista
+	@Version
+	private Long version;
+	
+	public AbstractUsuarioVersionado() {
+		super();
+	}
+
+	public void setVersion(Long value) {
+		this.version = value;
+	}
+
+	public Long getVersion() {
+		return this.version;
+	}
+
+}
@@ -0,0 +1,237 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Asynchronous facade over a GenericJpaDAO. Each task runs on a bounded
+ * thread pool with its own EntityManager (and DAO), closed when the task
+ * ends, so the entities returned by the futures are detached.
+ * When the queue is full the returned future fails with a
+ * RejectedExecutionException.
+ *
+ * @param <D> DAO type, created for each task by <code>daoFactory</code>
+ * @param <T>
+ * @param <ID>
+ */
+public class AsyncDAO<D extends GenericJpaDAO<T, ID>, T, ID extends Serializable> {
+
+	private final EntityManagerFactory factory;
+	
+	private final Function<EntityManager, D> daoFactory;
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong totalRunNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+	
+	
+	// == constructores
+	
+	public AsyncDAO(EntityManagerFactory factory, Function<EntityManager, D> daoFactory, 
+			int threads, int queueCapacity) {
+		this.factory = factory;
+		this.daoFactory = daoFactory;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory());
+	}
+	
+	
+	// == busquedas
+	
+	public CompletableFuture<T> findByIdAsync(ID id) {
+		return submit(dao -> dao.findById(id));
+	}
+	
+	public CompletableFuture<List<T>> findByIdsAsync(Collection<ID> ids) {
+		return submit(dao -> dao.findByIds(ids));
+	}
+	
+	public CompletableFuture<List<T>> findAllAsync() {
+		return submit(dao -> dao.findAll());
+	}
+	
+	
+	// == CRUD
+	
+	public CompletableFuture<T> createAsync(T entity) {
+		return submitInTransaction(dao -> dao.create(entity));
+	}
+	
+	public CompletableFuture<T> updateAsync(T entity) {
+		return submitInTransaction(dao -> dao.update(entity));
+	}
+	
+	public CompletableFuture<Integer> createAllAsync(Collection<T> entities) {
+		return submit(dao -> dao.createAll(entities));
+	}
+	
+	public CompletableFuture<Boolean> deleteByIdAsync(ID id) {
+		return submitInTransaction(dao -> {
+			T entity = dao.findById(id);
+			if (entity == null) {
+				return false;
+			}
+			dao.delete(entity);
+			return true;
+		});
+	}
+	
+	
+	// == tareas
+	
+	/**
+	 * Runs <code>work</code> on the pool with a new DAO and EntityManager.
+	 */
+	public <R> CompletableFuture<R> submit(Function<? super D, R> work) {
+		return submit(work, false);
+	}
+	
+	/**
+	 * Runs <code>work</code> on the pool inside a transaction that is committed
+	 * when it returns, or rolled back when it throws.
+	 */
+	public <R> CompletableFuture<R> submitInTransaction(Function<? super D, R> work) {
+		return submit(work, true);
+	}
+	
+	private <R> CompletableFuture<R> submit(Function<? super D, R> work, boolean transaction) {
+		long submitted = System.nanoTime();
+		try {
+			return CompletableFuture.supplyAsync(() -> run(work, transaction, submitted), executor);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			CompletableFuture<R> future = new CompletableFuture<R>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+	
+	private <R> R run(Function<? super D, R> work, boolean transaction, long submitted) {
+		long started = System.nanoTime();
+		totalWaitNanos.addAndGet(started - submitted);
+		EntityManager em = factory.createEntityManager();
+		try {
+			D dao = daoFactory.apply(em);
+			R resultado;
+			if (transaction) {
+				dao.beginTransaction();
+				try {
+					resultado = work.apply(dao);
+					dao.commit();
+				} catch (RuntimeException e) {
+					dao.rollback();
+					throw e;
+				}
+			} else {
+				resultado = work.apply(dao);
+			}
+			completed.incrementAndGet();
+			return resultado;
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			throw e;
+		} finally {
+			em.close();
+			long ended = System.nanoTime();
+			totalRunNanos.addAndGet(ended - started);
+			maxLatencyNanos.accumulateAndGet(ended - submitted, Math::max);
+		}
+	}
+	
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+	
+	
+	// == estadisticas
+	
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+	
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	public long getCompletedCount() {
+		return completed.get();
+	}
+	
+	public long getFailedCount() {
+		return failed.get();
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Average time the tasks waited in the queue before running.
+	 */
+	public double getAverageWaitMillis() {
+		long tasks = completed.get() + failed.get();
+		return tasks == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / tasks;
+	}
+	
+	/**
+	 * Average time the tasks took to run, once started.
+	 */
+	public double getAverageRunMillis() {
+		long tasks = completed.get() + failed.get();
+		return tasks == 0 ? 0.0 : totalRunNanos.get() / 1e6 / tasks;
+	}
+	
+	/**
+	 * Maximum time from submission to completion.
+	 */
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+	
+	@Override
+	public String toString() {
+		return "AsyncDAO[queue=" + getQueueDepth() + ", active=" + getActiveCount() 
+				+ ", completed=" + getCompletedCount() + ", failed=" + getFailedCount() 
+				+ ", rejected=" + getRejectedCount() + ", avgWaitMs=" + getAverageWaitMillis() 
+				+ ", avgRunMs=" + getAverageRunMillis() + ", maxLatencyMs=" + getMaxLatencyMillis() + "]";
+	}
+	
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		
+		private static final AtomicInteger pools = new AtomicInteger();
+		
+		private final int pool = pools.incrementAndGet();
+		
+		private final AtomicInteger threads = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AsyncDAO-" + pool + "-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -0,0 +1,138 @@
+package datos.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings. <code>mightContain</code> never returns
+ * <code>false</code> for a value that was added, and returns <code>true</code>
+ * for a value that was not added with (about) the configured probability.
+ * Values cannot be removed: stale values only cause false positives.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	
+	private final long bitSize;
+	
+	private final int hashFunctions;
+	
+	private final AtomicLong insertions = new AtomicLong();
+	
+	
+	// == constructores
+	
+	/**
+	 * @param expectedInsertions number of values the filter is sized for
+	 * @param falsePositiveRate  expected false positive rate once full, between 0 and 1
+	 */
+	public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions <= 0) {
+			throw new IllegalArgumentException("expectedInsertions must be positive: " + expectedInsertions);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+		}
+		// m = -n ln p / (ln 2)^2 ,  k = m/n ln 2
+		long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) 
+				/ (Math.log(2) * Math.log(2)));
+		m = Math.max(64, (m + 63) / 64 * 64);
+		this.bitSize = m;
+		this.hashFunctions = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+		this.bits = new AtomicLongArray((int) (m / 64));
+	}
+
+	
+	// == operaciones
+	
+	public void put(String value) {
+		if (value == null) {
+			return;
+		}
+		long h1 = hash(value);
+		long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < hashFunctions; i++) {
+			setBit(index(h1 + i * h2));
+		}
+		insertions.incrementAndGet();
+	}
+	
+	public boolean mightContain(String value) {
+		if (value == null) {
+			return false;
+		}
+		long h1 = hash(value);
+		long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < hashFunctions; i++) {
+			long bit = index(h1 + i * h2);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private long index(long hash) {
+		return (hash & Long.MAX_VALUE) % bitSize;
+	}
+	
+	private void setBit(long bit) {
+		int word = (int) (bit >>> 6);
+		long mask = 1L << bit;
+		long actual;
+		do {
+			actual = bits.get(word);
+			if ((actual & mask) != 0) {
+				return;
+			}
+		} while (!bits.compareAndSet(word, actual, actual | mask));
+	}
+	
+	// FNV-1a de 64 bits sobre los caracteres, con la mezcla final de MurmurHash3
+	private static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	
+	// == estadisticas
+	
+	public long getBitSize() {
+		return bitSize;
+	}
+	
+	public int getHashFunctions() {
+		return hashFunctions;
+	}
+	
+	public long getInsertions() {
+		return insertions.get();
+	}
+	
+	/**
+	 * False positive rate expected for the values inserted so far.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-hashFunctions * (double) insertions.get() / bitSize), hashFunctions);
+	}
+	
+	@Override
+	public String toString() {
+		return "BloomFilter[bits=" + bitSize + ", hashes=" + hashFunctions 
+				+ ", insertions=" + insertions.get() + "]";
+	}
+	
+}
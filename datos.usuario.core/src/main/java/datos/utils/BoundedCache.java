@@ -0,0 +1,233 @@
+package datos.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Thread-safe cache with a maximum size, an optional time to live and
+ * hit/miss/eviction counters.
+ * <ul>
+ * <li>LRU evicts the least recently used entry when the cache is full.</li>
+ * <li>LFU also keeps an approximate access frequency per key and only admits
+ * a new entry when it has been requested more often than the LRU victim,
+ * so one-off lookups do not push frequently used entries out.</li>
+ * </ul>
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class BoundedCache<K, V> {
+
+	public enum EvictionPolicy { LRU, LFU }
+	
+	private final int maxSize;
+	
+	private final EvictionPolicy policy;
+	
+	private final long ttlNanos;
+	
+	// en orden de acceso: el primero es el menos usado recientemente
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	
+	private final Map<K, Integer> frequencies = new HashMap<K, Integer>();
+	
+	private int accessesSinceAging = 0;
+	
+	private BiConsumer<K, V> evictionListener = null;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+	private long rejections = 0;
+	
+	
+	// == constructores
+	
+	public BoundedCache(int maxSize) {
+		this(maxSize, EvictionPolicy.LRU, 0);
+	}
+	
+	/**
+	 * @param ttlMillis time to live of each entry, 0 to keep entries until evicted
+	 */
+	public BoundedCache(int maxSize, EvictionPolicy policy, long ttlMillis) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException("ttlMillis must not be negative: " + ttlMillis);
+		}
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	
+	/**
+	 * Calls <code>listener</code>, holding the cache lock, with each entry
+	 * evicted or expired; not with the entries removed or replaced by the caller.
+	 */
+	public synchronized void setEvictionListener(BiConsumer<K, V> listener) {
+		this.evictionListener = listener;
+	}
+
+	
+	// == operaciones
+	
+	public synchronized V get(K key) {
+		if (policy == EvictionPolicy.LFU) {
+			recordAccess(key);
+		}
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.isExpired(System.nanoTime())) {
+			entries.remove(key);
+			expirations++;
+			misses++;
+			evicted(key, entry.value);
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+	
+	public synchronized void put(K key, V value) {
+		if (value == null) {
+			entries.remove(key);
+			return;
+		}
+		long expiresAt = ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos;
+		if (!entries.containsKey(key) && entries.size() >= maxSize) {
+			Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+			Map.Entry<K, Entry<V>> victim = eldest.next();
+			if (policy == EvictionPolicy.LFU && frequency(key) <= frequency(victim.getKey())) {
+				rejections++;
+				return;
+			}
+			eldest.remove();
+			evictions++;
+			evicted(victim.getKey(), victim.getValue().value);
+		}
+		entries.put(key, new Entry<V>(value, expiresAt));
+	}
+	
+	private void evicted(K key, V value) {
+		if (evictionListener != null) {
+			evictionListener.accept(key, value);
+		}
+	}
+	
+	/**
+	 * Whether the cache has a live entry for the key, without counting a hit or a miss.
+	 */
+	public synchronized boolean containsKey(K key) {
+		Entry<V> entry = entries.get(key);
+		return entry != null && !entry.isExpired(System.nanoTime());
+	}
+	
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		frequencies.clear();
+		accessesSinceAging = 0;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	
+	// == frecuencias (LFU)
+	
+	private void recordAccess(K key) {
+		Integer count = frequencies.get(key);
+		frequencies.put(key, count == null ? 1 : count + 1);
+		// envejece las frecuencias para que el historial no crezca sin limite
+		if (++accessesSinceAging >= 10 * maxSize) {
+			Iterator<Map.Entry<K, Integer>> it = frequencies.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<K, Integer> e = it.next();
+				if (e.getValue() <= 1) {
+					it.remove();
+				} else {
+					e.setValue(e.getValue() / 2);
+				}
+			}
+			accessesSinceAging = 0;
+		}
+	}
+	
+	private int frequency(K key) {
+		Integer count = frequencies.get(key);
+		return count == null ? 0 : count;
+	}
+	
+	
+	// == estadisticas
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public EvictionPolicy getPolicy() {
+		return policy;
+	}
+	
+	public synchronized long getHitCount() {
+		return hits;
+	}
+	
+	public synchronized long getMissCount() {
+		return misses;
+	}
+	
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+	
+	public synchronized long getExpirationCount() {
+		return expirations;
+	}
+	
+	public synchronized long getRejectionCount() {
+		return rejections;
+	}
+	
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "BoundedCache[" + policy + ", size=" + entries.size() + "/" + maxSize 
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions 
+				+ ", expirations=" + expirations + ", rejections=" + rejections + "]";
+	}
+	
+	
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+		
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+		
+		boolean isExpired(long now) {
+			return expiresAt != 0 && now - expiresAt > 0;
+		}
+	}
+	
+}
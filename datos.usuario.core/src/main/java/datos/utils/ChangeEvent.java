@@ -0,0 +1,111 @@
+package datos.utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A committed change of an entity, with the values of its fields before and
+ * after the change (<code>null</code> maps for creations and removals).
+ * The before values of updates are taken from the provider's change set: the
+ * changed attributes hold their previous value. Native upserts do not know the
+ * previous row, so their updates have no before values, and neither have the
+ * removals of bulk deletes.
+ */
+public class ChangeEvent {
+
+	public enum Type {
+		CREATED, UPDATED, REMOVED,
+		/**
+		 * Every row of the entity class in the unit was deleted by one bulk
+		 * statement: the event has no id and no values, and whoever keeps
+		 * state derived from the class must drop it or rebuild it.
+		 */
+		CLEARED
+	}
+	
+	private final String unit;
+	
+	private final Type type;
+	
+	private final Class<?> entityClass;
+	
+	private final Object id;
+	
+	private final Map<String, Object> before;
+	
+	private final Map<String, Object> after;
+	
+	private final long timestamp;
+	
+	private volatile long sequence = -1;
+	
+	/**
+	 * @param unit persistence unit that wrote the change (see {@link ChangeEventListener#unitName})
+	 */
+	public ChangeEvent(String unit, Type type, Class<?> entityClass, Object id, 
+			Map<String, Object> before, Map<String, Object> after) {
+		this.unit = unit;
+		this.type = type;
+		this.entityClass = entityClass;
+		this.id = id;
+		this.before = before == null ? null : Collections.unmodifiableMap(before);
+		this.after = after == null ? null : Collections.unmodifiableMap(after);
+		this.timestamp = System.currentTimeMillis();
+	}
+	
+	public String getUnit() {
+		return unit;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+	
+	public Object getId() {
+		return id;
+	}
+	
+	public Map<String, Object> getBefore() {
+		return before;
+	}
+	
+	public Map<String, Object> getAfter() {
+		return after;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * Position of the event in the publisher's ring buffer.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * Whether the field changed: always true for creations, removals and clears.
+	 */
+	public boolean changed(String field) {
+		if (before == null || after == null) {
+			return true;
+		}
+		return !before.containsKey(field) || !Objects.equals(before.get(field), after.get(field));
+	}
+	
+	@Override
+	public String toString() {
+		return "ChangeEvent[" + sequence + " " + type + " " + entityClass.getSimpleName() + "#" + id + "]";
+	}
+	
+}
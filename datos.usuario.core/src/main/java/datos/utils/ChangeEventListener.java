@@ -0,0 +1,229 @@
+package datos.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import javax.persistence.Transient;
+
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.SessionEventListener;
+import org.eclipse.persistence.sessions.changesets.ChangeRecord;
+import org.eclipse.persistence.sessions.changesets.DirectToFieldChangeRecord;
+import org.eclipse.persistence.sessions.changesets.ObjectChangeSet;
+import org.eclipse.persistence.sessions.changesets.UnitOfWorkChangeSet;
+
+/**
+ * EclipseLink session listener that turns the changes written by each unit of
+ * work (the transaction of an EntityManager) into {@link ChangeEvent}s of the
+ * default {@link ChangePublisher}. It is installed per persistence unit:
+ * <pre>
+ *   &lt;property name="eclipselink.session-event-listener" value="datos.utils.ChangeEventListener"/&gt;
+ * </pre>
+ * The events of each flush are kept in the unit of work, published when it
+ * commits and dropped with it when it is rolled back or released, whoever
+ * commits the EntityManager. The before values of updates come from the
+ * provider's change set, so nothing is copied when entities are loaded.
+ */
+public class ChangeEventListener extends SessionEventAdapter {
+
+	private static final String PENDING = ChangeEventListener.class.getName() + ".pending";
+
+	private static final Map<Class<?>, List<Field>> campos = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+
+	// == instalacion
+
+	/**
+	 * Whether the listener is installed in the persistence unit of the factory.
+	 */
+	public static boolean isInstalled(EntityManagerFactory factory) {
+		return isInstalled(factory.unwrap(Session.class));
+	}
+
+	/**
+	 * Name of the persistence unit of the factory, as given by
+	 * {@link ChangeEvent#getUnit()}.
+	 */
+	public static String unitName(EntityManagerFactory factory) {
+		return factory.unwrap(Session.class).getName();
+	}
+
+	private static boolean isInstalled(Session session) {
+		for (SessionEventListener listener : session.getEventManager().getListeners()) {
+			if (listener instanceof ChangeEventListener) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds events of changes written without the persistence context (e.g.
+	 * native upserts) to the transaction of the EntityManager. They are
+	 * published with its commit. Does nothing if the listener is not installed.
+	 */
+	static void enqueue(EntityManager em, Collection<ChangeEvent> events) {
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		if (isInstalled(unitOfWork)) {
+			for (ChangeEvent event : events) {
+				pending(unitOfWork).add(event);
+				ChangePublisher.getDefault().flushed(event);
+			}
+		}
+	}
+
+
+	// == eventos de la sesion
+
+	/**
+	 * Collects the changes of a flush, before they are written.
+	 */
+	@Override
+	public void postCalculateUnitOfWorkChangeSet(SessionEvent event) {
+		if (!(event.getSession() instanceof UnitOfWorkImpl)) {
+			return;
+		}
+		UnitOfWorkImpl unitOfWork = (UnitOfWorkImpl) event.getSession();
+		UnitOfWorkChangeSet changeSet = (UnitOfWorkChangeSet) event.getProperty("UnitOfWorkChangeSet");
+		String unit = unitOfWork.getName();
+		List<ChangeEvent> eventos = new ArrayList<ChangeEvent>();
+		if (changeSet != null) {
+			for (Object key : changeSet.getAllChangeSets().keySet()) {
+				ObjectChangeSet objectChanges = (ObjectChangeSet) key;
+				Object entity = changeSet.getUOWCloneForObjectChangeSet(objectChanges);
+				if (entity == null || (!objectChanges.isNew() && !objectChanges.hasChanges())) {
+					continue;
+				}
+				Map<String, Object> after = snapshot(entity);
+				if (objectChanges.isNew()) {
+					eventos.add(new ChangeEvent(unit, ChangeEvent.Type.CREATED, entity.getClass(), id(entity), 
+							null, after));
+				} else {
+					eventos.add(new ChangeEvent(unit, ChangeEvent.Type.UPDATED, entity.getClass(), id(entity),
+							before(after, objectChanges), after));
+				}
+			}
+		}
+		if (unitOfWork.hasDeletedObjects()) {
+			for (Object entity : unitOfWork.getDeletedObjects().keySet()) {
+				eventos.add(new ChangeEvent(unit, ChangeEvent.Type.REMOVED, entity.getClass(), id(entity), 
+						snapshot(entity), null));
+			}
+		}
+		if (!eventos.isEmpty()) {
+			pending(unitOfWork).addAll(eventos);
+			for (ChangeEvent cambio : eventos) {
+				ChangePublisher.getDefault().flushed(cambio);
+			}
+		}
+	}
+
+	@Override
+	public void postCommitUnitOfWork(SessionEvent event) {
+		List<ChangeEvent> eventos = take(event.getSession());
+		if (eventos != null) {
+			for (ChangeEvent cambio : eventos) {
+				ChangePublisher.getDefault().publish(cambio);
+			}
+		}
+	}
+
+	/**
+	 * A rolled back unit of work is released: its events are dropped.
+	 */
+	@Override
+	public void postReleaseUnitOfWork(SessionEvent event) {
+		take(event.getSession());
+	}
+
+	// un unit of work lo usa un solo hilo
+	@SuppressWarnings("unchecked")
+	private static List<ChangeEvent> pending(Session unitOfWork) {
+		List<ChangeEvent> eventos = (List<ChangeEvent>) unitOfWork.getProperty(PENDING);
+		if (eventos == null) {
+			eventos = new ArrayList<ChangeEvent>();
+			unitOfWork.setProperty(PENDING, eventos);
+		}
+		return eventos;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<ChangeEvent> take(Session unitOfWork) {
+		List<ChangeEvent> eventos = (List<ChangeEvent>) unitOfWork.getProperty(PENDING);
+		if (eventos != null) {
+			unitOfWork.removeProperty(PENDING);
+		}
+		return eventos;
+	}
+
+	// valores actuales con los valores anteriores de los atributos que cambiaron
+	private static Map<String, Object> before(Map<String, Object> after, ObjectChangeSet objectChanges) {
+		Map<String, Object> before = new LinkedHashMap<String, Object>(after);
+		for (ChangeRecord record : objectChanges.getChanges()) {
+			if (record instanceof DirectToFieldChangeRecord && before.containsKey(record.getAttribute())) {
+				before.put(record.getAttribute(), record.getOldValue());
+			}
+		}
+		return before;
+	}
+
+
+	// == lectura de campos
+
+	static Map<String, Object> snapshot(Object entity) {
+		Map<String, Object> valores = new LinkedHashMap<String, Object>();
+		try {
+			for (Field field : campos(entity.getClass())) {
+				valores.put(field.getName(), field.get(entity));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return valores;
+	}
+
+	private static Object id(Object entity) {
+		try {
+			for (Field field : campos(entity.getClass())) {
+				if (field.isAnnotationPresent(Id.class)) {
+					return field.get(entity);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return null;
+	}
+
+	// campos persistentes de la clase y sus superclases
+	private static List<Field> campos(Class<?> clase) {
+		return campos.computeIfAbsent(clase, c -> {
+			List<Field> lista = new ArrayList<Field>();
+			for (Class<?> actual = c; actual != null && actual != Object.class; actual = actual.getSuperclass()) {
+				for (Field field : actual.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+							|| field.isAnnotationPresent(Transient.class) || field.getName().startsWith("_persistence")) {
+						continue;
+					}
+					field.setAccessible(true);
+					lista.add(field);
+				}
+			}
+			return lista;
+		});
+	}
+
+}
@@ -0,0 +1,208 @@
+package datos.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Publishes committed {@link ChangeEvent}s into a lock-free ring buffer.
+ * <p>
+ * {@link ChangeEventListener} keeps the events of each unit of work and
+ * publishes them when it commits; rolled back events are never published.
+ * Listeners are called in the committing thread, after the ring is written.
+ * Flush listeners see the events earlier, when they are written, even if the
+ * transaction is rolled back later: they suit structures that only must not
+ * miss a change, like Bloom filters. Writers claim a slot with an atomic increment of the sequence; each
+ * {@link Subscription} keeps its own cursor and reads without locks. A slow
+ * subscriber that is overtaken by more than <code>capacity</code> events skips
+ * the overwritten ones and counts them as lost.
+ * <p>
+ * Bulk JPQL statements bypass the unit of work, so the listener does not see
+ * them: GenericJpaDAO.deleteAll(int) publishes a REMOVED event per deleted id
+ * and deleteAll() a single {@link ChangeEvent.Type#CLEARED} event, on which
+ * subscribers must reset what they keep of the class. Other bulk updates or
+ * deletes run directly on the EntityManager publish nothing.
+ */
+public class ChangePublisher {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+	
+	private static final ChangePublisher DEFAULT = new ChangePublisher(DEFAULT_CAPACITY);
+	
+	private final AtomicReferenceArray<ChangeEvent> ring;
+	
+	private final int mask;
+	
+	private final AtomicLong next = new AtomicLong();
+	
+	private final List<Consumer<ChangeEvent>> listeners = new CopyOnWriteArrayList<Consumer<ChangeEvent>>();
+	
+	private final List<Consumer<ChangeEvent>> flushListeners = new CopyOnWriteArrayList<Consumer<ChangeEvent>>();
+	
+	private final AtomicLong listenerErrors = new AtomicLong();
+	
+	
+	// == constructores
+	
+	public static ChangePublisher getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * @param capacity number of events kept, rounded up to a power of two
+	 */
+	public ChangePublisher(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.ring = new AtomicReferenceArray<ChangeEvent>(size);
+		this.mask = size - 1;
+	}
+	
+	
+	// == publicacion
+	
+	public void publish(ChangeEvent event) {
+		long sequence = next.getAndIncrement();
+		event.setSequence(sequence);
+		ring.set((int) (sequence & mask), event);
+		notify(listeners, event);
+	}
+	
+	/**
+	 * Passes a written but not yet committed event to the flush listeners.
+	 */
+	void flushed(ChangeEvent event) {
+		notify(flushListeners, event);
+	}
+	
+	// un listener que falla no debe romper el commit ni a los demas
+	private void notify(List<Consumer<ChangeEvent>> consumers, ChangeEvent event) {
+		for (Consumer<ChangeEvent> consumer : consumers) {
+			try {
+				consumer.accept(event);
+			} catch (RuntimeException e) {
+				listenerErrors.incrementAndGet();
+			}
+		}
+	}
+	
+	public long getPublishedCount() {
+		return next.get();
+	}
+	
+	public int getCapacity() {
+		return ring.length();
+	}
+	
+	/**
+	 * Exceptions thrown by listeners, which are ignored.
+	 */
+	public long getListenerErrorCount() {
+		return listenerErrors.get();
+	}
+	
+	
+	// == listeners
+	
+	/**
+	 * Calls <code>listener</code> with every event published from now on.
+	 */
+	public void addListener(Consumer<ChangeEvent> listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(Consumer<ChangeEvent> listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Calls <code>listener</code> with every event when it is flushed, before
+	 * its transaction commits or rolls back.
+	 */
+	public void addFlushListener(Consumer<ChangeEvent> listener) {
+		flushListeners.add(listener);
+	}
+	
+	public void removeFlushListener(Consumer<ChangeEvent> listener) {
+		flushListeners.remove(listener);
+	}
+	
+	
+	// == suscripciones
+	
+	/**
+	 * Subscribes to the events published from now on.
+	 */
+	public Subscription subscribe() {
+		return new Subscription(next.get());
+	}
+	
+	/**
+	 * Reader of the ring buffer with its own cursor. A subscription must be
+	 * read by one thread at a time.
+	 */
+	public class Subscription {
+		
+		private long cursor;
+		
+		private long lost = 0;
+		
+		private Subscription(long cursor) {
+			this.cursor = cursor;
+		}
+		
+		/**
+		 * Returns the next event, or <code>null</code> if there is none yet.
+		 */
+		public ChangeEvent poll() {
+			while (true) {
+				ChangeEvent event = ring.get((int) (cursor & mask));
+				if (event == null || event.getSequence() < cursor) {
+					// el escritor aun no ha llenado el slot
+					return null;
+				}
+				if (event.getSequence() == cursor) {
+					cursor++;
+					return event;
+				}
+				// el anillo dio la vuelta: salta a los eventos mas antiguos que quedan
+				long oldest = next.get() - ring.length();
+				lost += oldest - cursor;
+				cursor = oldest;
+			}
+		}
+		
+		/**
+		 * Passes every available event to <code>consumer</code>.
+		 * @return number of events consumed
+		 */
+		public int drain(Consumer<ChangeEvent> consumer) {
+			int consumidos = 0;
+			ChangeEvent event;
+			while ((event = poll()) != null) {
+				consumer.accept(event);
+				consumidos++;
+			}
+			return consumidos;
+		}
+		
+		public long getCursor() {
+			return cursor;
+		}
+		
+		/**
+		 * Events overwritten before this subscription read them.
+		 */
+		public long getLostCount() {
+			return lost;
+		}
+	}
+	
+}
@@ -0,0 +1,125 @@
+package datos.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Conditions of a search, joined with AND. Values are bound as query
+ * parameters; only the attributes and operators are part of the query text,
+ * so searches with the same conditions and different values share one query.
+ * <pre>
+ *   Filter.where("nombre", Operator.LIKE, "Jua%").and("email", Operator.IS_NULL)
+ * </pre>
+ */
+public class Filter {
+
+	public enum Operator {
+		EQ, NE, LT, LE, GT, GE, LIKE, IN, IS_NULL, NOT_NULL;
+		
+		boolean hasValue() {
+			return this != IS_NULL && this != NOT_NULL;
+		}
+	}
+	
+	public static class Condition {
+		
+		private final String attribute;
+		private final Operator operator;
+		private final Object value;
+		
+		Condition(String attribute, Operator operator, Object value) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.value = value;
+		}
+		
+		public String getAttribute() {
+			return attribute;
+		}
+		
+		public Operator getOperator() {
+			return operator;
+		}
+		
+		public Object getValue() {
+			return value;
+		}
+	}
+	
+	private static final Comparator<Condition> ORDEN = Comparator
+			.comparing(Condition::getAttribute)
+			.thenComparing(Condition::getOperator);
+	
+	private final List<Condition> conditions = new ArrayList<Condition>();
+	
+	
+	// == construccion
+	
+	public static Filter all() {
+		return new Filter();
+	}
+	
+	public static Filter where(String attribute, Operator operator, Object value) {
+		return new Filter().and(attribute, operator, value);
+	}
+	
+	public static Filter where(String attribute, Operator operator) {
+		return new Filter().and(attribute, operator);
+	}
+	
+	public Filter and(String attribute, Operator operator, Object value) {
+		if (!operator.hasValue()) {
+			throw new IllegalArgumentException(operator + " does not take a value");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Null value for " + attribute + ", use IS_NULL");
+		}
+		if (operator == Operator.IN && !(value instanceof Collection)) {
+			throw new IllegalArgumentException("IN requires a collection: " + attribute);
+		}
+		conditions.add(new Condition(attribute, operator, value));
+		Collections.sort(conditions, ORDEN);
+		return this;
+	}
+	
+	public Filter and(String attribute, Operator operator) {
+		if (operator.hasValue()) {
+			throw new IllegalArgumentException(operator + " requires a value");
+		}
+		conditions.add(new Condition(attribute, operator, null));
+		Collections.sort(conditions, ORDEN);
+		return this;
+	}
+	
+	
+	// == consulta
+	
+	/**
+	 * Conditions sorted by attribute and operator, so the same conditions added
+	 * in a different order produce the same query.
+	 */
+	public List<Condition> getConditions() {
+		return Collections.unmodifiableList(conditions);
+	}
+	
+	/**
+	 * Key of the query shape: attributes and operators, without values.
+	 */
+	public String shape() {
+		StringBuilder shape = new StringBuilder();
+		for (Condition condition : conditions) {
+			shape.append(shape.length() == 0 ? "" : " and ")
+					.append(condition.attribute).append(' ').append(condition.operator);
+		}
+		return shape.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return "Filter[" + shape() + "]";
+	}
+	
+}
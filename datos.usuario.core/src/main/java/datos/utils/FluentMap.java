@@ -5,6 +5,7 @@ import java.util.HashMap;
 
 public class FluentMap {
 
+    @SafeVarargs
     public static <K, V> Map<K, V> Map(Tuple<K, V>... entries) {
         Map<K, V> map = new HashMap<K, V>();
 
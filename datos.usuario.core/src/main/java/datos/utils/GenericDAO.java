@@ -1,7 +1,9 @@
 package datos.utils;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface GenericDAO<T, ID extends Serializable> {
 	 
@@ -9,17 +11,37 @@ public interface GenericDAO<T, ID extends Serializable> {
 	
 	T findById(ID id);
 	T findById(ID id, boolean lock);
+    List<T> findByIds(Collection<ID> ids);
     List<T> findAll();
+    Stream<T> streamAll();
+    Stream<T> streamAll(int fetchSize);
+    Page<T, ID> findFirstPage(int pageSize);
+    Page<T, ID> findPage(ID lastId, int pageSize);
+    List<T> search(Filter filter, Sort sort);
+    List<T> search(Filter filter, Sort sort, int firstResult, int maxResults);
+    
+    // == conteo y existencia
+    
+    long count();
+    boolean existsById(ID id);
+    boolean existsBy(String attribute, Object value);
  
     // == CRUD
     
     T create(T entity);
     T update(T entity);    
+    int createAll(Collection<T> entities);
+    int updateAll(Collection<T> entities);
+    void upsert(T entity);
+    int upsertAll(Collection<T> entities);
     void delete(T entity);
+    int deleteAll();
+    int deleteAll(int chunkSize);
     
     // == Transacciones
     
     public void beginTransaction();
+    public boolean isTransactionActive();
     public void commit();
     public void rollback();
     
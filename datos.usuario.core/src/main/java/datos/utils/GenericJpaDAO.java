@@ -1,15 +1,53 @@
 package datos.utils;
 
 import java.io.Serializable;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import javax.persistence.Cache;
+import javax.persistence.CacheRetrieveMode;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.persistence.TransactionRequiredException;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.SingularAttribute;
 
 /**
  * This implementation uses JPA 2.0 Criteria API.
@@ -26,8 +64,62 @@ public class GenericJpaDAO<T, ID extends Serializable> implements
 
 	private String persistentClassName = null;
 	
+	private String idAttributeName = null;
+	
+	private String findAllQuery = null;
+	
+	private QueryCache queryCache = null;
+	
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	public static final int DEFAULT_IN_LIST_SIZE = 500;
+	
+	private int inListSize = DEFAULT_IN_LIST_SIZE;
+	
+	private BoundedCache<ID, T> entityCache = null;
+	
+	// ids escritos en la transaccion de cada EntityManager, se invalidan de nuevo al terminarla
+	private final Map<EntityManager, Set<ID>> pendingInvalidations = 
+			Collections.synchronizedMap(new WeakHashMap<EntityManager, Set<ID>>());
+	
+	private final Map<Class<?>, List<Field>> copyFields = new ConcurrentHashMap<Class<?>, List<Field>>();
+	
+	private final Map<Class<?>, Optional<Field>> versionFields = new ConcurrentHashMap<Class<?>, Optional<Field>>();
+	
+	private NativeUpsert<T> nativeUpsert = null;
+	
+	private NativeUpsert.Strategy upsertStrategy = NativeUpsert.Strategy.UPDATE_THEN_INSERT;
+	
 	@PersistenceContext
 	private EntityManager em;
+	
+	private EntityManagerFactory factory;
+	
+	private final ThreadLocal<EntityManager> threadEntityManager = new ThreadLocal<EntityManager>();
+	
+	private boolean closeOnCommit = true;
+	
+	public static final String HINT_READ_ONLY = "eclipselink.read-only";
+	
+	public static final String HINT_CACHE_RETRIEVE_MODE = "javax.persistence.cache.retrieveMode";
+	
+	public static final String HINT_CACHE_USAGE = "eclipselink.cache-usage";
+	
+	private static final Map<String, Object> READ_ONLY_HINTS;
+	static {
+		Map<String, Object> hints = new HashMap<String, Object>();
+		hints.put(HINT_READ_ONLY, "true");
+		hints.put(HINT_CACHE_RETRIEVE_MODE, CacheRetrieveMode.USE);
+		READ_ONLY_HINTS = Collections.unmodifiableMap(hints);
+	}
+	
+	private boolean readOnly = false;
+	
+	private final ThreadLocal<Boolean> readOnlyCall = new ThreadLocal<Boolean>();
 
 	
 	// == constructores
@@ -43,6 +135,114 @@ public class GenericJpaDAO<T, ID extends Serializable> implements
 		this.em = em;
 	}
 	
+	/**
+	 * Creates a DAO that can be shared by several threads: each thread works with
+	 * its own EntityManager, created from <code>factory</code> on first use and
+	 * closed by {@link #release()}.
+	 */
+	public GenericJpaDAO(EntityManagerFactory factory) {
+		this();
+		this.factory = factory;
+	}
+	
+	/**
+	 * Returns the EntityManager given to the constructor (or injected), or the
+	 * one bound to the calling thread when the DAO was created with an
+	 * EntityManagerFactory.
+	 */
+	public EntityManager getEntityManager() {
+		if (em != null) {
+			return em;
+		}
+		if (factory == null) {
+			throw new IllegalStateException("The DAO has neither an EntityManager nor an EntityManagerFactory");
+		}
+		EntityManager current = threadEntityManager.get();
+		if (current == null || !current.isOpen()) {
+			current = factory.createEntityManager();
+			threadEntityManager.set(current);
+		}
+		return current;
+	}
+	
+	// el EntityManager del DAO o el del hilo, sin crearlo
+	private EntityManager currentEntityManager() {
+		EntityManager current = em != null ? em : threadEntityManager.get();
+		return current != null && current.isOpen() ? current : null;
+	}
+	
+	/**
+	 * Returns the factory of the DAO's EntityManagers. In factory mode it does
+	 * not create an EntityManager, so metadata (metamodel, ids, shared cache)
+	 * can be read without keeping one open.
+	 */
+	public EntityManagerFactory getEntityManagerFactory() {
+		if (factory != null) {
+			return factory;
+		}
+		return getEntityManager().getEntityManagerFactory();
+	}
+	
+	/**
+	 * Closes the EntityManager bound to the calling thread, rolling back its
+	 * transaction if it is still active. Does nothing when the DAO was created
+	 * with an EntityManager.
+	 */
+	public void release() {
+		EntityManager current = threadEntityManager.get();
+		if (current == null) {
+			return;
+		}
+		threadEntityManager.remove();
+		invalidatePending(current);
+		if (current.isOpen()) {
+			try {
+				if (current.getTransaction().isActive()) {
+					current.getTransaction().rollback();
+				}
+			} finally {
+				current.close();
+			}
+		}
+	}
+	
+	/**
+	 * In factory mode, closes the thread's EntityManager after an operation made
+	 * outside a transaction, so it is not kept (with its persistence context)
+	 * after the call. The returned entities are detached.
+	 */
+	protected void releaseIfIdle() {
+		if (em == null && closeOnCommit && !isTransactionActive()) {
+			release();
+		}
+	}
+	
+	/**
+	 * In factory mode (with closeOnCommit) the changes must be made inside a
+	 * transaction: the EntityManager is closed after each operation, so changes
+	 * made outside one would be lost.
+	 */
+	protected void checkTransaction() {
+		if (em == null && closeOnCommit && !isTransactionActive()) {
+			throw new TransactionRequiredException("No transaction is active; call beginTransaction() first");
+		}
+	}
+	
+	public boolean isCloseOnCommit() {
+		return closeOnCommit;
+	}
+	
+	/**
+	 * When the DAO was created with an EntityManagerFactory, closes the thread's
+	 * EntityManager after each commit or rollback (one EntityManager per transaction)
+	 * and after each read made outside a transaction. It is <code>true</code> by
+	 * default; with <code>false</code> the EntityManager lives until
+	 * {@link #release()} is called.
+	 */
+	public void setCloseOnCommit(boolean closeOnCommit) {
+		this.closeOnCommit = closeOnCommit;
+	}
+	
 	public void setPersistentClass(Class<T> persistentClass) {
 		this.persistentClass = persistentClass;
 	}
@@ -60,6 +260,103 @@ public class GenericJpaDAO<T, ID extends Serializable> implements
 		return persistentClassName;
 	}
 	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Number of entities written by createAll/updateAll between flushes. It should
+	 * match <code>eclipselink.jdbc.batch-writing.size</code> in the persistence
+	 * units that enable batch writing.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+	
+	public int getInListSize() {
+		return inListSize;
+	}
+	
+	/**
+	 * Maximum number of ids sent in each <code>IN (...)</code> query by findByIds.
+	 */
+	public void setInListSize(int inListSize) {
+		if (inListSize <= 0) {
+			throw new IllegalArgumentException("inListSize must be positive: " + inListSize);
+		}
+		this.inListSize = inListSize;
+	}
+	
+	public boolean isReadOnly() {
+		Boolean call = readOnlyCall.get();
+		return call != null ? call : readOnly;
+	}
+	
+	/**
+	 * In read-only mode findById, findAll, findByIds, streamAll, findPage and the
+	 * execute*Query helpers ask the provider for read-only results: the entities
+	 * come from the shared cache, are not registered in the persistence context
+	 * and are not compared at commit. They must not be modified.
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+	
+	/**
+	 * Runs <code>work</code> in read-only mode, only for the calling thread.
+	 */
+	public <R> R readOnly(Supplier<R> work) {
+		Boolean previo = readOnlyCall.get();
+		readOnlyCall.set(Boolean.TRUE);
+		try {
+			return work.get();
+		} finally {
+			if (previo == null) {
+				readOnlyCall.remove();
+			} else {
+				readOnlyCall.set(previo);
+			}
+		}
+	}
+	
+	public BoundedCache<ID, T> getEntityCache() {
+		return entityCache;
+	}
+	
+	/**
+	 * Application level cache used by findById outside transactions. It is kept
+	 * apart from the provider caches and invalidated by create/update/delete/
+	 * upsert/deleteAll, once when the change is made and again when its
+	 * transaction ends. It holds detached copies (see {@link #copy(Object)})
+	 * and each hit returns a new copy, so callers never share an instance.
+	 */
+	public void setEntityCache(BoundedCache<ID, T> entityCache) {
+		this.entityCache = entityCache;
+	}
+	
+	public String getIdAttributeName() {
+		if (idAttributeName == null) {
+			ManagedType<T> type = getEntityManagerFactory().getMetamodel().managedType(getPersistentClass());
+			for (SingularAttribute<? super T, ?> attribute : type.getSingularAttributes()) {
+				if (attribute.isId()) {
+					idAttributeName = attribute.getName();
+				}
+			}
+			if (idAttributeName == null) {
+				throw new IllegalStateException("No @Id attribute found in " + getPersistentClassName());
+			}
+		}
+		return idAttributeName;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public ID getId(T entity) {
+		return (ID) getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+	}
+	
 
 	// == simple queries
 
@@ -70,15 +367,86 @@ public class GenericJpaDAO<T, ID extends Serializable> implements
 	public T findById(ID id, boolean lock) {
 		T entity;
 		if (lock) {
-			entity = (T) em.find(getPersistentClass(), id);
-			em.lock(entity, LockModeType.WRITE);
+			entity = (T) getEntityManager().find(getPersistentClass(), id);
+			getEntityManager().lock(entity, LockModeType.WRITE);
+			invalidate(id);
+		} else if (entityCache == null || isTransactionActive()) {
+			// en una transaccion se devuelve la entidad administrada
+			try {
+				entity = find(id);
+			} finally {
+				releaseIfIdle();
+			}
 		} else {
-			entity = em.find(getPersistentClass(), id);
+			entity = entityCache.get(id);
+			if (entity != null) {
+				return copy(entity);
+			}
+			try {
+				entity = find(id);
+				if (entity != null) {
+					entityCache.put(id, copy(entity));
+				}
+			} finally {
+				releaseIfIdle();
+			}
 		}
 
 		return entity;
 	}
 	
+	/**
+	 * Finds several entities by id. Ids already in the persistence context or
+	 * in the shared cache are resolved with a cache-only <code>find</code>,
+	 * without going to the database; only the rest are read with
+	 * <code>IN (...)</code> queries of at most <code>inListSize</code> ids.
+	 * The result has one element per id, in the same order, and
+	 * <code>null</code> for the ids that do not exist.
+	 */
+	public List<T> findByIds(Collection<ID> ids) {
+		try {
+			return readByIds(ids);
+		} finally {
+			releaseIfIdle();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<T> readByIds(Collection<ID> ids) {
+		Map<ID, T> encontrados = new HashMap<ID, T>();
+		List<ID> pendientes = new ArrayList<ID>();
+		for (ID id : new LinkedHashSet<ID>(ids)) {
+			if (id == null) {
+				continue;
+			}
+			T entity = findInCache(id);
+			if (entity != null) {
+				encontrados.put(id, entity);
+			} else {
+				pendientes.add(id);
+			}
+		}
+		
+		String jpql = "select x from " + getPersistentClassName() 
+				+ " x where x." + getIdAttributeName() + " in :ids";
+		for (int inicio = 0; inicio < pendientes.size(); inicio += inListSize) {
+			List<ID> bloque = pendientes.subList(inicio, 
+					Math.min(inicio + inListSize, pendientes.size()));
+			List<T> leidos = createCachedQuery(jpql)
+					.setParameter("ids", bloque)
+					.getResultList();
+			for (T entity : leidos) {
+				encontrados.put(getId(entity), entity);
+			}
+		}
+		
+		List<T> resultado = new ArrayList<T>(ids.size());
+		for (ID id : ids) {
+			resultado.add(id == null ? null : encontrados.get(id));
+		}
+		return resultado;
+	}
+	
 	@SuppressWarnings("unchecked")
 	public List<T> findAll() {
 		
@@ -86,182 +454,923 @@ public class GenericJpaDAO<T, ID extends Serializable> implements
 		//    getPersistentClass().getName()
 		// in EclipseLink it is not possible
 		
-		Query query = em.createQuery("select x from " 
-				+ getPersistentClassName()
-				+ " x ");
+		if (findAllQuery == null) {
+			findAllQuery = "select x from " 
+					+ getPersistentClassName()
+					+ " x ";
+		}
+		Query query = createCachedQuery(findAllQuery);
+		try {
+			return query.getResultList();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+
+
+	// == conteo y existencia
+
+	public long count() {
+		try {
+			return ((Number) createCachedQuery("select count(x) from " + getPersistentClassName() + " x")
+					.getSingleResult()).longValue();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+
+	/**
+	 * Checks the id with a query that selects only the id column, so no entity
+	 * is built or added to the persistence context.
+	 */
+	public boolean existsById(ID id) {
+		if (id == null) {
+			return false;
+		}
+		return existsBy(getIdAttributeName(), id);
+	}
+
+	/**
+	 * Checks whether some entity has the given value (or <code>null</code>) in a
+	 * single valued attribute, selecting at most one id. The attribute is checked
+	 * against the metamodel, so it cannot be used to inject JPQL.
+	 */
+	public boolean existsBy(String attribute, Object value) {
+		ManagedType<T> type = getEntityManagerFactory().getMetamodel().managedType(getPersistentClass());
+		// lanza IllegalArgumentException si el atributo no existe
+		type.getSingularAttribute(attribute);
+		String jpql = "select x." + getIdAttributeName() + " from " + getPersistentClassName()
+				+ " x where x." + attribute + (value == null ? " is null" : " = :value");
+		Query query = createCachedQuery(jpql);
+		if (value != null) {
+			query.setParameter("value", value);
+		}
+		try {
+			return !query.setMaxResults(1).getResultList().isEmpty();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+
+	
+	// == streaming
+	
+	public Stream<T> streamAll() {
+		return streamAll( DEFAULT_FETCH_SIZE );
+	}
+	
+	/**
+	 * Iterates over all the entities ordered by id, reading them in chunks of
+	 * <code>fetchSize</code> rows with a keyset query (<code>id &gt; :lastId</code>).
+	 * Outside a transaction the chunks are read with an EntityManager of the
+	 * stream, closed with it, and each chunk is detached when the next one is
+	 * read, so memory use does not grow with the table and the entities managed
+	 * by the dao are not touched. Changes made to streamed entities must be
+	 * saved with {@link #update(Object)}. Inside a transaction the chunks are
+	 * read with its EntityManager, so they see its writes, and stay managed as
+	 * with any other query: scan big tables outside transactions. 
+	 * In factory mode, closing the stream outside a transaction also closes the
+	 * thread's EntityManager.
+	 */
+	public Stream<T> streamAll(int fetchSize) {
+		if (fetchSize <= 0) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+		ChunkIterator iterator = new ChunkIterator(fetchSize);
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), 
+				false).onClose(iterator::close);
+	}
+	
+	// == paginacion
+	
+	public Page<T, ID> findFirstPage(int pageSize) {
+		return findPage( null, pageSize );
+	}
+	
+	/**
+	 * Keyset (seek) pagination: reads the <code>pageSize</code> entities whose id
+	 * follows <code>lastId</code>, ordered by id. Pass <code>null</code> to read
+	 * the first page and {@link Page#getNextId()} to read the following ones.
+	 */
+	public Page<T, ID> findPage(ID lastId, int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		// lee un elemento de mas para saber si hay otra pagina
+		List<T> resultado;
+		try {
+			resultado = findAfter(lastId, pageSize + 1);
+		} finally {
+			releaseIfIdle();
+		}
+		boolean hasNext = resultado.size() > pageSize;
+		if (hasNext) {
+			resultado = resultado.subList(0, pageSize);
+		}
+		ID nextId = resultado.isEmpty() ? lastId : getId(resultado.get(resultado.size() - 1));
+		return new Page<T, ID>(resultado, nextId, hasNext);
+	}
+	
+	protected List<T> findAfter(ID lastId, int maxResults) {
+		return findAfter(getEntityManager(), lastId, maxResults);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<T> findAfter(EntityManager em, ID lastId, int maxResults) {
+		String jpql = "select x from " + getPersistentClassName() + " x "
+				+ (lastId == null ? "" : "where x." + getIdAttributeName() + " > :lastId ")
+				+ "order by x." + getIdAttributeName();
+		Query query = createCachedQuery(em, jpql);
+		if (lastId != null) {
+			query.setParameter("lastId", lastId);
+		}
+		query.setMaxResults(maxResults);
 		return query.getResultList();
 	}
+	
+	private class ChunkIterator implements Iterator<T> {
+		
+		private final int fetchSize;
+		// sin transaccion lee con un EntityManager propio, que se limpia en cada chunk
+		private EntityManager reader = null;
+		private List<T> chunk = Collections.emptyList();
+		private int position = 0;
+		private ID lastId = null;
+		private boolean exhausted = false;
+		
+		ChunkIterator(int fetchSize) {
+			this.fetchSize = fetchSize;
+		}
+		
+		public boolean hasNext() {
+			if (position < chunk.size()) {
+				return true;
+			}
+			if (exhausted) {
+				release();
+				return false;
+			}
+			release();
+			chunk = findAfter(entityManager(), lastId, fetchSize);
+			position = 0;
+			exhausted = chunk.size() < fetchSize;
+			if (chunk.isEmpty()) {
+				return false;
+			}
+			lastId = getId(chunk.get(chunk.size() - 1));
+			return true;
+		}
+		
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return chunk.get(position++);
+		}
+		
+		private EntityManager entityManager() {
+			if (isTransactionActive()) {
+				return getEntityManager();
+			}
+			if (reader == null) {
+				reader = getEntityManagerFactory().createEntityManager();
+			}
+			return reader;
+		}
+		
+		// solo se suelta el EntityManager propio: nadie mas tiene sus entidades
+		private void release() {
+			if (reader != null && !chunk.isEmpty()) {
+				reader.clear();
+			}
+			chunk = Collections.emptyList();
+		}
+		
+		void close() {
+			release();
+			exhausted = true;
+			if (reader != null) {
+				reader.close();
+				reader = null;
+			}
+			releaseIfIdle();
+		}
+	}
+
+	
+	// == proyecciones
+	
+	/**
+	 * Reads only the given attributes of every entity, building one
+	 * <code>dtoClass</code> instance per row with a constructor expression.
+	 * <code>dtoClass</code> needs a public constructor whose parameters match the
+	 * attributes, in order. The results are plain objects, not managed entities.
+	 */
+	public <R> List<R> findAllAs(Class<R> dtoClass, String... attributes) {
+		String key = "select " + String.join(",", attributes) + " from " + getPersistentClassName();
+		TypedQuery<R> query = getQueryCache().createQuery(getEntityManager(), key, dtoClass, manager -> {
+			CriteriaBuilder builder = manager.getCriteriaBuilder();
+			CriteriaQuery<R> criteria = builder.createQuery(dtoClass);
+			Root<T> root = criteria.from(getPersistentClass());
+			criteria.select(builder.construct(dtoClass, selections(root, attributes)));
+			return manager.createQuery(criteria);
+		});
+		try {
+			return query.getResultList();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+	
+	/**
+	 * Reads only the given attributes of every entity as tuples, with each value
+	 * aliased by its attribute name (<code>tuple.get("nombre")</code>).
+	 */
+	public List<Tuple> findAllAsTuples(String... attributes) {
+		String key = "select " + String.join(",", attributes) + " from " + getPersistentClassName();
+		TypedQuery<Tuple> query = getQueryCache().createQuery(getEntityManager(), key, Tuple.class, manager -> {
+			CriteriaBuilder builder = manager.getCriteriaBuilder();
+			CriteriaQuery<Tuple> criteria = builder.createTupleQuery();
+			Root<T> root = criteria.from(getPersistentClass());
+			criteria.multiselect(selections(root, attributes));
+			return manager.createQuery(criteria);
+		});
+		try {
+			return query.getResultList();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+	
+	private Selection<?>[] selections(Root<T> root, String... attributes) {
+		if (attributes.length == 0) {
+			throw new IllegalArgumentException("At least one attribute is required");
+		}
+		Selection<?>[] selections = new Selection<?>[attributes.length];
+		for (int i = 0; i < attributes.length; i++) {
+			selections[i] = root.get(attributes[i]).alias(attributes[i]);
+		}
+		return selections;
+	}
+
+
+	// == busquedas dinamicas
+
+	public List<T> search(Filter filter, Sort sort) {
+		return search(filter, sort, 0, -1);
+	}
+
+	/**
+	 * Searches with a Criteria query built from the filter and the sort. The
+	 * query is cached in the QueryCache by filtered attributes, operators and
+	 * sort, and the values are bound as parameters, so each shape is prepared
+	 * only once. Pass a negative <code>maxResults</code> to read every row.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> search(Filter filter, Sort sort, int firstResult, int maxResults) {
+		List<Filter.Condition> conditions = filter.getConditions();
+		// lanza IllegalArgumentException si algun atributo no existe
+		ManagedType<T> type = getEntityManagerFactory().getMetamodel().managedType(getPersistentClass());
+		for (Filter.Condition condition : conditions) {
+			type.getSingularAttribute(condition.getAttribute());
+		}
+		for (Sort.Order order : sort.getOrders()) {
+			type.getSingularAttribute(order.getAttribute());
+		}
+
+		String key = "search " + getPersistentClassName() + " where " + filter.shape() + " order by " + sort.shape();
+		TypedQuery<T> query = getQueryCache().createQuery(getEntityManager(), key, getPersistentClass(), manager -> {
+			CriteriaBuilder builder = manager.getCriteriaBuilder();
+			CriteriaQuery<T> criteria = builder.createQuery(getPersistentClass());
+			Root<T> root = criteria.from(getPersistentClass());
+			Predicate[] predicates = new Predicate[conditions.size()];
+			for (int i = 0; i < predicates.length; i++) {
+				predicates[i] = predicate(builder, root, conditions.get(i), "p" + i);
+			}
+			List<Order> orden = new ArrayList<Order>();
+			for (Sort.Order order : sort.getOrders()) {
+				Path<?> path = root.get(order.getAttribute());
+				orden.add(order.isAscending() ? builder.asc(path) : builder.desc(path));
+			}
+			criteria.select(root).where(predicates).orderBy(orden);
+			return manager.createQuery(criteria);
+		});
+
+		applyHints(query);
+		for (int i = 0; i < conditions.size(); i++) {
+			if (conditions.get(i).getOperator().hasValue()) {
+				query.setParameter("p" + i, conditions.get(i).getValue());
+			}
+		}
+		if (firstResult > 0) {
+			query.setFirstResult(firstResult);
+		}
+		if (maxResults >= 0) {
+			query.setMaxResults(maxResults);
+		}
+		try {
+			return query.getResultList();
+		} finally {
+			releaseIfIdle();
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Predicate predicate(CriteriaBuilder builder, Root<T> root, Filter.Condition condition, String name) {
+		Path path = root.get(condition.getAttribute());
+		switch (condition.getOperator()) {
+		case IS_NULL:
+			return builder.isNull(path);
+		case NOT_NULL:
+			return builder.isNotNull(path);
+		case IN:
+			return path.in(builder.parameter(Collection.class, name));
+		case LIKE:
+			return builder.like(path, builder.parameter(String.class, name));
+		default:
+			break;
+		}
+		ParameterExpression parameter = builder.parameter(
+				MethodType.methodType(path.getJavaType()).wrap().returnType(), name);
+		switch (condition.getOperator()) {
+		case EQ:
+			return builder.equal(path, parameter);
+		case NE:
+			return builder.notEqual(path, parameter);
+		case LT:
+			return builder.lessThan(path, parameter);
+		case LE:
+			return builder.lessThanOrEqualTo(path, parameter);
+		case GT:
+			return builder.greaterThan(path, parameter);
+		default:
+			return builder.greaterThanOrEqualTo(path, parameter);
+		}
+	}
 
 	
 	// == operaciones CRUD
 	
 	public T create(T entity) {
-		em.persist(entity);
+		checkTransaction();
+		getEntityManager().persist(entity);
+		invalidate(getId(entity));
 		return entity;
 	}
 	
     public T update(T entity) {
-        return em.merge(entity);
+        checkTransaction();
+        invalidate(getId(entity));
+        return getEntityManager().merge(entity);
     }	
 
 	public void delete(T entity) {
-		em.remove(entity);
+		checkTransaction();
+		invalidate(getId(entity));
+		getEntityManager().remove(entity);
+	}
+
+	public int createAll(Collection<T> entities) {
+		return writeAll(entities, true);
+	}
+	
+	public int updateAll(Collection<T> entities) {
+		return writeAll(entities, false);
+	}
+	
+	/**
+	 * Writes the entities flushing the entity manager every <code>batchSize</code>
+	 * entities, so the inserts/updates of each flush are sent as a JDBC batch
+	 * (when batch writing is enabled in the persistence unit) and the
+	 * persistence context does not grow. Joins the current transaction, or runs
+	 * in its own one if there is none.
+	 * <p>
+	 * In its own transaction the entity manager is cleared after each flush.
+	 * In the caller's transaction only the written entities are detached (the
+	 * persisted ones and the managed copies returned by merge); the other
+	 * entities of the caller stay managed.
+	 */
+	private int writeAll(Collection<T> entities, boolean nuevos) {
+		boolean propia = !isTransactionActive();
+		if (propia) {
+			beginTransaction();
+		}
+		int escritos = 0;
+		List<T> lote = new ArrayList<T>(Math.min(batchSize, entities.size()));
+		try {
+			for (T entity : entities) {
+				lote.add(nuevos ? create(entity) : update(entity));
+				if (++escritos % batchSize == 0) {
+					liberar(lote, propia);
+				}
+			}
+			liberar(lote, propia);
+			if (propia) {
+				commit();
+			}
+		} catch (RuntimeException e) {
+			if (propia) {
+				rollback();
+			}
+			throw e;
+		}
+		return escritos;
+	}
+
+	// escribe el lote y lo saca del contexto de persistencia
+	private void liberar(List<T> lote, boolean propia) {
+		flush();
+		if (propia) {
+			clear();
+		} else {
+			for (T entity : lote) {
+				getEntityManager().detach(entity);
+			}
+		}
+		lote.clear();
+	}
+
+	/**
+	 * Inserts or updates the entity by id with native SQL, without reading it
+	 * first. The persistence context is not touched: the entity stays detached
+	 * and the shared cache and the entity cache are evicted for its id.
+	 * Joins the current transaction, or runs in its own one if there is none.
+	 */
+	public void upsert(T entity) {
+		upsertAll(Collections.singletonList(entity));
+	}
+
+	/**
+	 * Upserts the entities with JDBC batches of <code>batchSize</code> rows.
+	 * With {@link NativeUpsert.Strategy#UPDATE_THEN_INSERT} two concurrent
+	 * upserts of a new id may both try the insert; the loser fails with a
+	 * duplicate key error and its transaction must be retried.
+	 */
+	public int upsertAll(Collection<T> entities) {
+		boolean propia = !isTransactionActive();
+		if (propia) {
+			beginTransaction();
+		}
+		try {
+			boolean[] insertados;
+			if (entities.size() == 1) {
+				insertados = new boolean[] { 
+						getNativeUpsert().upsert(getEntityManager(), entities.iterator().next(), upsertStrategy) };
+			} else {
+				insertados = getNativeUpsert().upsertAll(getEntityManager(), entities, batchSize, upsertStrategy);
+			}
+			// el SQL nativo no pasa por el unit of work: sus eventos se aaden a mano
+			String unit = ChangeEventListener.unitName(getEntityManagerFactory());
+			List<ChangeEvent> eventos = new ArrayList<ChangeEvent>(entities.size());
+			int i = 0;
+			for (T entity : entities) {
+				eventos.add(new ChangeEvent(unit, insertados[i++] ? ChangeEvent.Type.CREATED : ChangeEvent.Type.UPDATED, 
+						getPersistentClass(), getId(entity), null, ChangeEventListener.snapshot(entity)));
+			}
+			ChangeEventListener.enqueue(getEntityManager(), eventos);
+			if (propia) {
+				commit();
+			}
+		} catch (RuntimeException e) {
+			if (propia) {
+				rollback();
+			}
+			throw e;
+		} finally {
+			Cache cache = getEntityManagerFactory().getCache();
+			for (T entity : entities) {
+				ID id = getId(entity);
+				invalidate(id);
+				cache.evict(getPersistentClass(), id);
+			}
+		}
+		return entities.size();
+	}
+
+	public NativeUpsert.Strategy getUpsertStrategy() {
+		return upsertStrategy;
+	}
+
+	public void setUpsertStrategy(NativeUpsert.Strategy upsertStrategy) {
+		this.upsertStrategy = upsertStrategy;
+	}
+
+	private NativeUpsert<T> getNativeUpsert() {
+		if (nativeUpsert == null) {
+			nativeUpsert = new NativeUpsert<T>(getEntityManagerFactory().getMetamodel().entity(getPersistentClass()));
+		}
+		return nativeUpsert;
 	}
 
-	public void deleteAll() {
-		List<T> all = findAll();
+	/**
+	 * Deletes every row with a single bulk <code>DELETE</code> statement.
+	 * Bulk statements bypass the persistence context, so it is cleared and
+	 * the entity type is evicted from the shared cache afterwards. The rows
+	 * are not read, so instead of one REMOVED event per row it publishes a
+	 * single {@link ChangeEvent.Type#CLEARED} event of the class with the commit.
+	 */
+	public int deleteAll() {
+		int borrados;
 		beginTransaction();
-		for( T element : all ) {
-			delete( element );			
+		try {
+			borrados = getEntityManager().createQuery("delete from " + getPersistentClassName() + " x")
+					.executeUpdate();
+			ChangeEventListener.enqueue(getEntityManager(), Collections.singletonList(
+					new ChangeEvent(ChangeEventListener.unitName(getEntityManagerFactory()), ChangeEvent.Type.CLEARED, 
+							getPersistentClass(), null, null, null)));
+			commit();
+		} catch (RuntimeException e) {
+			rollback();
+			throw e;
+		} finally {
+			evictAll();
 		}
-		commit();
+		return borrados;
+	}
+
+	/**
+	 * Deletes every row in chunks of at most <code>chunkSize</code> rows,
+	 * committing one transaction per chunk to keep transactions short. Each
+	 * chunk deletes the ids it read, so it publishes a REMOVED event (without
+	 * before values) per deleted id with its commit.
+	 */
+	@SuppressWarnings("unchecked")
+	public int deleteAll(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		String idName = getIdAttributeName();
+		int borrados = 0;
+		boolean terminado = false;
+		try {
+			while (!terminado) {
+				beginTransaction();
+				try {
+					List<ID> ids = getEntityManager().createQuery("select x." + idName + " from " 
+							+ getPersistentClassName() + " x order by x." + idName)
+							.setMaxResults(chunkSize)
+							.getResultList();
+					String unit = ChangeEventListener.unitName(getEntityManagerFactory());
+					List<ChangeEvent> eventos = new ArrayList<ChangeEvent>(ids.size());
+					for (int inicio = 0; inicio < ids.size(); inicio += inListSize) {
+						List<ID> bloque = ids.subList(inicio, Math.min(inicio + inListSize, ids.size()));
+						borrados += getEntityManager().createQuery("delete from " + getPersistentClassName() 
+								+ " x where x." + idName + " in :ids")
+								.setParameter("ids", bloque)
+								.executeUpdate();
+						for (ID id : bloque) {
+							eventos.add(new ChangeEvent(unit, ChangeEvent.Type.REMOVED, getPersistentClass(), id, null, null));
+						}
+					}
+					ChangeEventListener.enqueue(getEntityManager(), eventos);
+					commit();
+					terminado = ids.size() < chunkSize;
+				} catch (RuntimeException e) {
+					rollback();
+					throw e;
+				}
+			}
+		} finally {
+			evictAll();
+		}
+		return borrados;
+	}
+	
+	protected void invalidate(ID id) {
+		if (entityCache != null && id != null) {
+			entityCache.remove(id);
+			EntityManager current = currentEntityManager();
+			if (current != null && current.getTransaction().isActive()) {
+				pendingInvalidations.computeIfAbsent(current, manager -> new HashSet<ID>()).add(id);
+			}
+		}
+	}
+	
+	// otro hilo pudo leer (y guardar) la fila anterior mientras la transaccion seguia abierta
+	private void invalidatePending(EntityManager current) {
+		Set<ID> ids = current == null ? null : pendingInvalidations.remove(current);
+		if (ids != null && entityCache != null) {
+			for (ID id : ids) {
+				entityCache.remove(id);
+			}
+		}
+	}
+	
+	/**
+	 * Shallow copy of the persistent attributes of the entity, detached from
+	 * any EntityManager; used to keep entities in the entity cache. Related
+	 * entities and collections are shared with the original. The entity class
+	 * needs a no-arg constructor, as JPA requires.
+	 */
+	@SuppressWarnings("unchecked")
+	protected T copy(T entity) {
+		try {
+			Constructor<?> constructor = entity.getClass().getDeclaredConstructor();
+			constructor.setAccessible(true);
+			T copia = (T) constructor.newInstance();
+			for (Field field : persistentFields(entity.getClass())) {
+				field.set(copia, field.get(entity));
+			}
+			return copia;
+		} catch (ReflectiveOperationException e) {
+			throw new PersistenceException("Cannot copy " + entity.getClass().getName(), e);
+		}
+	}
+	
+	private List<Field> persistentFields(Class<?> type) {
+		return copyFields.computeIfAbsent(type, clase -> {
+			List<Field> fields = new ArrayList<Field>();
+			for (Attribute<?, ?> attribute : getEntityManagerFactory().getMetamodel().managedType(clase).getAttributes()) {
+				Field field = field(clase, attribute.getName());
+				field.setAccessible(true);
+				fields.add(field);
+			}
+			return fields;
+		});
+	}
+	
+	/**
+	 * Copies the @Version value of <code>source</code> to <code>target</code>,
+	 * so a later update of <code>target</code> overwrites the row as it is now
+	 * (the last writer wins). Does nothing for entities without version.
+	 */
+	protected void copyVersion(T source, T target) {
+		Optional<Field> version = versionFields.computeIfAbsent(source.getClass(), clase -> {
+			for (SingularAttribute<?, ?> attribute : getEntityManagerFactory().getMetamodel().managedType(clase).getSingularAttributes()) {
+				if (attribute.isVersion()) {
+					Field field = field(clase, attribute.getName());
+					field.setAccessible(true);
+					return Optional.of(field);
+				}
+			}
+			return Optional.empty();
+		});
+		if (version.isPresent()) {
+			try {
+				version.get().set(target, version.get().get(source));
+			} catch (IllegalAccessException e) {
+				throw new PersistenceException("Cannot copy the version of " + source.getClass().getName(), e);
+			}
+		}
+	}
+	
+	private static Field field(Class<?> type, String name) {
+		for (Class<?> clase = type; clase != null; clase = clase.getSuperclass()) {
+			try {
+				return clase.getDeclaredField(name);
+			} catch (NoSuchFieldException e) {
+				// se busca en la superclase
+			}
+		}
+		throw new IllegalStateException("No field " + name + " in " + type.getName());
+	}
+	
+	protected void evictAll() {
+		if (entityCache != null) {
+			entityCache.clear();
+		}
+		EntityManager current = currentEntityManager();
+		if (current != null) {
+			current.clear();
+		}
+		getEntityManagerFactory().getCache().evict(getPersistentClass());
 	}
 
 	// == Transacciones
 	
 	public void beginTransaction() {
 		// inicia una transaccin
-		em.getTransaction().begin();
+		getEntityManager().getTransaction().begin();
+	}
+	
+	/**
+	 * Does not create an EntityManager: in factory mode returns <code>false</code>
+	 * when the calling thread has none.
+	 */
+	public boolean isTransactionActive() {
+		EntityManager current = currentEntityManager();
+		return current != null && current.getTransaction().isActive();
 	}
 	
 	public void commit() {
 		// hace commit de la transaccin
-		em.getTransaction().commit();
+		EntityManager current = currentEntityManager();
+		try {
+			getEntityManager().getTransaction().commit();
+		} finally {
+			invalidatePending(current);
+			if (closeOnCommit) {
+				release();
+			}
+		}
 	}
 
 	public void rollback() {
+		EntityManager current = currentEntityManager();
 		try {
 			// hace rollback  de la transacci�n
-			em.getTransaction().rollback();
+			getEntityManager().getTransaction().rollback();
 		} catch (Exception e) {
 			// no haga nada
+		} finally {
+			invalidatePending(current);
+			if (closeOnCommit) {
+				release();
+			}
 		}
 	}	
 	
 	public void flush() {
-		em.flush();
+		getEntityManager().flush();
 	}
 
 	public void clear() {
-		em.clear();
+		EntityManager current = currentEntityManager();
+		if (current != null) {
+			current.clear();
+		}
 	}
 
 	
 	// == queries support
 	
-	@SuppressWarnings("unchecked")
-	protected T executeSingleResultNamedQuery(String namedQuery) {
-		Query consulta = em.createNamedQuery(namedQuery);
-		T resultado = (T) consulta.getSingleResult();
-		return resultado;	
+	public QueryCache getQueryCache() {
+		if (queryCache == null) {
+			queryCache = QueryCache.forFactory(getEntityManagerFactory());
+		}
+		return queryCache;
 	}
-
-	@SuppressWarnings("unchecked")
-	protected T executeSingleResultNamedQuery(String namedQuery, Object... params) {
-		Query consulta = em.createNamedQuery(namedQuery);
-		int paramNumber = 0;
-		for(Object param: params) {
-			if (param instanceof Map) {
-				Map<String, Object> map = (Map<String, Object>) param;
-				for(String paramName: map.keySet()) {
-					consulta.setParameter(paramName, map.get(paramName));
-				}				
-			} else {
-				consulta.setParameter(paramNumber++, param);
+	
+	/**
+	 * Creates the query through the query cache, so its definition is parsed
+	 * and prepared only once per JPQL text while it stays in the cache. Used
+	 * by the execute*Query helpers and by the queries the DAO generates.
+	 */
+	protected Query createQuery(String jpql) {
+		return createCachedQuery(getEntityManager(), jpql);
+	}
+	
+	private Query createCachedQuery(String jpql) {
+		return createCachedQuery(getEntityManager(), jpql);
+	}
+	
+	private Query createCachedQuery(EntityManager em, String jpql) {
+		return applyHints(getQueryCache().createQuery(em, jpql));
+	}
+	
+	protected Query createNamedQuery(String namedQuery) {
+		return applyHints(getEntityManager().createNamedQuery(namedQuery));
+	}
+	
+	protected T find(ID id) {
+		if (isReadOnly()) {
+			return getEntityManager().find(getPersistentClass(), id, READ_ONLY_HINTS);
+		}
+		return getEntityManager().find(getPersistentClass(), id);
+	}
+	
+	/**
+	 * Entity of the persistence context or the shared cache, or <code>null</code>
+	 * if it is in neither: never goes to the database.
+	 */
+	protected T findInCache(ID id) {
+		Map<String, Object> hints = new HashMap<String, Object>();
+		if (isReadOnly()) {
+			hints.putAll(READ_ONLY_HINTS);
+		}
+		hints.put(HINT_CACHE_USAGE, "CheckCacheOnly");
+		return getEntityManager().find(getPersistentClass(), id, hints);
+	}
+	
+	protected Query applyHints(Query query) {
+		if (isReadOnly()) {
+			for (Map.Entry<String, Object> hint : READ_ONLY_HINTS.entrySet()) {
+				query.setHint(hint.getKey(), hint.getValue());
 			}
 		}
+		return query;
+	}
+	
+	@SuppressWarnings("unchecked")
+	protected T executeSingleResultNamedQuery(String namedQuery) {
+		Query consulta = createNamedQuery(namedQuery);
 		try {
 			T resultado = (T) consulta.getSingleResult();
 			return resultado;	
-		} catch (NoResultException e) {
-			return null;
+		} finally {
+			releaseIfIdle();
 		}
+	}
+
+	protected T executeSingleResultNamedQuery(String namedQuery, Object... params) {
+		return singleResultOrNull(bind(createNamedQuery(namedQuery), params));
 	}	
 	
-	@SuppressWarnings("unchecked")
 	protected List<T> executeListResultNamedQuery(String namedQuery) {
-		Query consulta = em.createNamedQuery(namedQuery);
-		List<T> resultado = consulta.getResultList();
-		return resultado;	
+		return listResult(createNamedQuery(namedQuery));
+	}
+
+	protected <V> T executeSingleResultNamedQuery(String namedQuery, QueryParameter<V> parameter, V value) {
+		return singleResultOrNull(parameter.bind(createNamedQuery(namedQuery), value));
+	}
+
+	protected T executeSingleResultNamedQuery(String namedQuery, ParameterBinder binder) {
+		Query consulta = createNamedQuery(namedQuery);
+		binder.bind(consulta);
+		return singleResultOrNull(consulta);
 	}
 
-	@SuppressWarnings("unchecked")
 	protected List<T> executeListResultNamedQuery(String namedQuery, Object... params) {
-		Query consulta = em.createNamedQuery(namedQuery);
-		int paramNumber = 0;
-		for(Object param: params) {
-			if (param instanceof Map) {
-				Map<String, Object> map = (Map<String, Object>) param;
-				for(String paramName: map.keySet()) {
-					consulta.setParameter(paramName, map.get(paramName));
-				}				
-			} else {
-				consulta.setParameter(paramNumber++, param);
-			}
-		}
+		return listResult(bind(createNamedQuery(namedQuery), params));
+	}
+
+	protected <V> List<T> executeListResultNamedQuery(String namedQuery, QueryParameter<V> parameter, V value) {
+		return listResult(parameter.bind(createNamedQuery(namedQuery), value));
+	}
+
+	protected List<T> executeListResultNamedQuery(String namedQuery, ParameterBinder binder) {
+		Query consulta = createNamedQuery(namedQuery);
+		binder.bind(consulta);
+		return listResult(consulta);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected T executeSingleResultQuery(String query) {
+		Query consulta = createQuery(query);
 		try {
-			List<T> resultado = consulta.getResultList();
+			T resultado = (T) consulta.getSingleResult();
 			return resultado;	
-		} catch (NoResultException e) {
-			return null;
+		} finally {
+			releaseIfIdle();
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	protected T executeSingleResultQuery(String query) {
-		Query consulta = em.createQuery(query);
-		T resultado = (T) consulta.getSingleResult();
-		return resultado;	
+	protected T executeSingleResultQuery(String query, Object... params) {
+		return singleResultOrNull(bind(createQuery(query), params));
+	}
+
+	protected T executeSingleResultQuery(String query, ParameterBinder binder) {
+		Query consulta = createQuery(query);
+		binder.bind(consulta);
+		return singleResultOrNull(consulta);
+	}
+	
+	protected List<T> executeListResultQuery(String query) {
+		return listResult(createQuery(query));
 	}
 
+	protected List<T> executeListResultQuery(String query, Object... params) {
+		return listResult(bind(createQuery(query), params));
+	}
+
+	protected List<T> executeListResultQuery(String query, ParameterBinder binder) {
+		Query consulta = createQuery(query);
+		binder.bind(consulta);
+		return listResult(consulta);
+	}
+
+	/**
+	 * Binds the positional parameters from <code>?0</code>, as the helpers
+	 * always did; a Map argument binds its entries as named parameters. For
+	 * JPQL numbered from <code>?1</code> use the binder of
+	 * {@link ParameterBinder#positional}.
+	 */
 	@SuppressWarnings("unchecked")
-	protected T executeSingleResultQuery(String query, Object... params) {
-		Query consulta = em.createQuery(query);
+	private static Query bind(Query consulta, Object... params) {
 		int paramNumber = 0;
 		for(Object param: params) {
 			if (param instanceof Map) {
 				Map<String, Object> map = (Map<String, Object>) param;
-				for(String paramName: map.keySet()) {
-					consulta.setParameter(paramName, map.get(paramName));
+				for(Map.Entry<String, Object> entry: map.entrySet()) {
+					consulta.setParameter(entry.getKey(), entry.getValue());
 				}				
 			} else {
 				consulta.setParameter(paramNumber++, param);
 			}
 		}
+		return consulta;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T singleResultOrNull(Query consulta) {
 		try {
 			T resultado = (T) consulta.getSingleResult();
 			return resultado;	
 		} catch (NoResultException e) {
 			return null;
+		} finally {
+			releaseIfIdle();
 		}
 	}
-	
-	@SuppressWarnings("unchecked")
-	protected List<T> executeListResultQuery(String query) {
-		Query consulta = em.createQuery(query);
-		List<T> resultado = consulta.getResultList();
-		return resultado;	
-	}
 
 	@SuppressWarnings("unchecked")
-	protected List<T> executeListResultQuery(String query, Object... params) {
-		Query consulta = em.createQuery(query);
-		int paramNumber = 0;
-		for(Object param: params) {
-			if (param instanceof Map) {
-				Map<String, Object> map = (Map<String, Object>) param;
-				for(String paramName: map.keySet()) {
-					consulta.setParameter(paramName, map.get(paramName));
-				}				
-			} else {
-				consulta.setParameter(paramNumber++, param);
-			}
-		}
+	private List<T> listResult(Query consulta) {
 		try {
 			List<T> resultado = consulta.getResultList();
 			return resultado;	
-		} catch (NoResultException e) {
-			return null;
+		} finally {
+			releaseIfIdle();
 		}
 	}
 
@@ -0,0 +1,250 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Group commit: collects create/update requests from many threads and writes
+ * them with a single writer thread, one transaction per batch. A batch is
+ * closed when it has <code>maxBatchSize</code> requests or when
+ * <code>maxWaitMillis</code> have passed since its first request.
+ * <p>
+ * Each request gets a future completed when its batch commits. If a batch
+ * fails, its requests are written again one transaction each, so only the
+ * failing requests fail. Callers block when the queue is full. If the writer
+ * is interrupted it writes the requests it already took and stops; the ones
+ * still queued fail when it is closed.
+ * <p>
+ * The DAO is used only by the writer thread and must not be shared.
+ *
+ * @param <T>
+ * @param <ID>
+ */
+public class GroupCommitWriter<T, ID extends Serializable> {
+
+	private final GenericJpaDAO<T, ID> dao;
+	
+	private final BlockingQueue<Request<T>> queue;
+	
+	private final int maxBatchSize;
+	
+	private final long maxWaitMillis;
+	
+	private final Thread writer;
+	
+	private volatile boolean running = true;
+	
+	// los que encolan toman la lectura; close toma la escritura para que nadie encole despues
+	private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedRequests = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	
+	
+	// == constructores
+	
+	public GroupCommitWriter(GenericJpaDAO<T, ID> dao, int maxBatchSize, long maxWaitMillis, int queueCapacity) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+		}
+		this.dao = dao;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.queue = new ArrayBlockingQueue<Request<T>>(queueCapacity);
+		this.writer = new Thread(this::writeLoop, "GroupCommitWriter-" + dao.getPersistentClassName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+	
+	
+	// == solicitudes
+	
+	public CompletableFuture<T> submitCreate(T entity) throws InterruptedException {
+		return submit(new Request<T>(entity, true));
+	}
+	
+	public CompletableFuture<T> submitUpdate(T entity) throws InterruptedException {
+		return submit(new Request<T>(entity, false));
+	}
+	
+	private CompletableFuture<T> submit(Request<T> request) throws InterruptedException {
+		submitLock.readLock().lock();
+		try {
+			// espera por turnos para notar si se cierra mientras la cola esta llena
+			do {
+				if (!running) {
+					throw new IllegalStateException("GroupCommitWriter is closed");
+				}
+			} while (!queue.offer(request, 100, TimeUnit.MILLISECONDS));
+			requests.incrementAndGet();
+			return request.future;
+		} finally {
+			submitLock.readLock().unlock();
+		}
+	}
+	
+	
+	// == escritura
+	
+	private void writeLoop() {
+		List<Request<T>> batch = new ArrayList<Request<T>>(maxBatchSize);
+		boolean interrumpido = false;
+		while (!interrumpido && (running || !queue.isEmpty())) {
+			try {
+				Request<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+				while (batch.size() < maxBatchSize) {
+					long restante = deadline - System.nanoTime();
+					Request<T> next = restante > 0 ? queue.poll(restante, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				write(batch);
+			} catch (InterruptedException e) {
+				// las ya tomadas de la cola se escriben; las que quedan en ella fallan en close
+				interrumpido = true;
+				running = false;
+				if (!batch.isEmpty()) {
+					write(batch);
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+		if (interrumpido) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void write(List<Request<T>> batch) {
+		List<T> resultados = new ArrayList<T>(batch.size());
+		try {
+			dao.beginTransaction();
+			for (Request<T> request : batch) {
+				resultados.add(request.apply(dao));
+			}
+			dao.commit();
+			batches.incrementAndGet();
+			batchedRequests.addAndGet(batch.size());
+		} catch (RuntimeException e) {
+			dao.rollback();
+			dao.clear();
+			failedBatches.incrementAndGet();
+			writeOneByOne(batch);
+			return;
+		} finally {
+			dao.clear();
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).future.complete(resultados.get(i));
+		}
+	}
+	
+	private void writeOneByOne(List<Request<T>> batch) {
+		for (Request<T> request : batch) {
+			try {
+				dao.beginTransaction();
+				T resultado = request.apply(dao);
+				dao.commit();
+				request.future.complete(resultado);
+			} catch (RuntimeException e) {
+				dao.rollback();
+				failedRequests.incrementAndGet();
+				request.future.completeExceptionally(e);
+			} finally {
+				dao.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Stops accepting requests, writes the pending ones and waits for the
+	 * writer thread to end. Requests the writer could not take (it was
+	 * interrupted) fail with IllegalStateException.
+	 */
+	public void close() throws InterruptedException {
+		running = false;
+		// espera a los que estaban encolando; despues nadie mas encola
+		submitLock.writeLock().lock();
+		submitLock.writeLock().unlock();
+		writer.join();
+		List<Request<T>> restantes = new ArrayList<Request<T>>();
+		queue.drainTo(restantes);
+		for (Request<T> request : restantes) {
+			failedRequests.incrementAndGet();
+			request.future.completeExceptionally(new IllegalStateException("GroupCommitWriter is closed"));
+		}
+	}
+	
+	
+	// == estadisticas
+	
+	public int getQueueDepth() {
+		return queue.size();
+	}
+	
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	public long getBatchCount() {
+		return batches.get();
+	}
+	
+	public long getFailedBatchCount() {
+		return failedBatches.get();
+	}
+	
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+	
+	/**
+	 * Average number of requests per committed batch.
+	 */
+	public double getAverageBatchSize() {
+		long committed = batches.get();
+		return committed == 0 ? 0.0 : (double) batchedRequests.get() / committed;
+	}
+	
+	@Override
+	public String toString() {
+		return "GroupCommitWriter[queue=" + getQueueDepth() + ", requests=" + getRequestCount() 
+				+ ", batches=" + getBatchCount() + ", failedBatches=" + getFailedBatchCount() 
+				+ ", failedRequests=" + getFailedRequestCount() + "]";
+	}
+	
+	
+	private static class Request<T> {
+		final T entity;
+		final boolean create;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		Request(T entity, boolean create) {
+			this.entity = entity;
+			this.create = create;
+		}
+		
+		T apply(GenericJpaDAO<T, ?> dao) {
+			return create ? dao.create(entity) : dao.update(entity);
+		}
+	}
+	
+}
@@ -1,7 +1,9 @@
 package datos.utils;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -10,32 +12,126 @@ import javax.persistence.Query;
 
 public class JpaUtils {
 	
-	private static EntityManagerFactory factory;
+	// una unidad de persistencia por nombre, desplegada una sola vez
+	private static final Map<String, PersistenceUnit> units = new ConcurrentHashMap<String, PersistenceUnit>();
+	
+	private static volatile EntityManagerFactory factory;
 	
 	public static EntityManager getEntityManager(String unitName) {
-		
-		// captura los errores al conectars a la base de datos 
-		try {
-			// inicia la conexin
-			factory = Persistence.createEntityManagerFactory( unitName );
-			EntityManager em = factory.createEntityManager();
-			
-			return em;
-			
-		// no se pudo conectar ??
-		} catch (Exception e) {
-			// error al crear la conexin
-			System.out.println("Error creando conexin : " + e.getMessage());
-			e.printStackTrace();
-			
-			throw new RuntimeException("Error creando conexin : " + e.getMessage(), e);
-		}
+		return getEntityManagerFactory(unitName).createEntityManager();
 	}
 	
+	/**
+	 * Returns the factory of the persistence unit, creating and deploying it the
+	 * first time it is requested. Later calls, from any thread, reuse it until
+	 * {@link #close(String)} is called.
+	 */
+	public static EntityManagerFactory getEntityManagerFactory(String unitName) {
+		PersistenceUnit unit = units.computeIfAbsent(unitName, PersistenceUnit::new);
+		factory = unit.getFactory();
+		return factory;
+	}
+	
+	/**
+	 * Returns the last factory returned by the registry.
+	 */
 	public static EntityManagerFactory getEntityManagerFactory() {
 		return factory;
 	}
 	
+	public static boolean isDeployed(String unitName) {
+		PersistenceUnit unit = units.get(unitName);
+		return unit != null && unit.isDeployed();
+	}
+	
+	/**
+	 * Time spent creating and deploying the persistence unit, or -1 if it has
+	 * not been deployed.
+	 */
+	public static long getBootstrapTimeMillis(String unitName) {
+		PersistenceUnit unit = units.get(unitName);
+		return unit == null ? -1 : unit.getBootstrapMillis();
+	}
+	
+	public static Map<String, Long> getBootstrapTimes() {
+		Map<String, Long> times = new HashMap<String, Long>();
+		for (PersistenceUnit unit : units.values()) {
+			if (unit.isDeployed()) {
+				times.put(unit.name, unit.getBootstrapMillis());
+			}
+		}
+		return times;
+	}
+	
+	public static void close(String unitName) {
+		PersistenceUnit unit = units.remove(unitName);
+		if (unit != null) {
+			unit.close();
+		}
+	}
+	
+	public static void closeAll() {
+		for (String unitName : units.keySet()) {
+			close(unitName);
+		}
+		factory = null;
+	}
+	
+	private static class PersistenceUnit {
+		
+		private final String name;
+		
+		private EntityManagerFactory factory;
+		
+		private long bootstrapMillis = -1;
+		
+		PersistenceUnit(String name) {
+			this.name = name;
+		}
+		
+		synchronized EntityManagerFactory getFactory() {
+			if (factory != null && factory.isOpen()) {
+				return factory;
+			}
+			
+			// captura los errores al conectars a la base de datos 
+			try {
+				long inicio = System.nanoTime();
+				// inicia la conexin
+				factory = Persistence.createEntityManagerFactory( name );
+				// el proveedor despliega la unidad al crear el primer EntityManager
+				factory.createEntityManager().close();
+				bootstrapMillis = (System.nanoTime() - inicio) / 1000000;
+				
+				return factory;
+				
+			// no se pudo conectar ??
+			} catch (Exception e) {
+				factory = null;
+				// error al crear la conexin
+				System.out.println("Error creando conexin : " + e.getMessage());
+				e.printStackTrace();
+				
+				throw new RuntimeException("Error creando conexin : " + e.getMessage(), e);
+			}
+		}
+		
+		synchronized boolean isDeployed() {
+			return factory != null && factory.isOpen();
+		}
+		
+		synchronized long getBootstrapMillis() {
+			return bootstrapMillis;
+		}
+		
+		synchronized void close() {
+			if (factory != null && factory.isOpen()) {
+				factory.close();
+			}
+			factory = null;
+		}
+	}
+	
 	public static Object executeSingleResultNamedQuery(EntityManager em, String namedQuery) {
 		Query consulta = em.createNamedQuery(namedQuery);
 		Object resultado = consulta.getSingleResult();
@@ -44,6 +140,7 @@ public class JpaUtils {
 
 	public static Object executeSingleResultNamedQuery(EntityManager em, String namedQuery, Object... params) {
 		Query consulta = em.createNamedQuery(namedQuery);
+		// desde ?0; ParameterBinder.positional numera desde ?1
 		int paramNumber = 0;
 		for(Object param: params) {
 			consulta.setParameter(paramNumber++, param);
@@ -54,12 +151,19 @@ public class JpaUtils {
 
 	public static Object executeSingleResultNamedQuery(EntityManager em, String namedQuery, Map<String, Object> params) {
 		Query consulta = em.createNamedQuery(namedQuery);
-		for(String paramName: params.keySet()) {
-			consulta.setParameter(paramName, params.get(paramName));
+		for(Map.Entry<String, Object> param: params.entrySet()) {
+			consulta.setParameter(param.getKey(), param.getValue());
 		}
 		Object resultado = consulta.getSingleResult();
 		return resultado;	
 	}
+
+	public static Object executeSingleResultNamedQuery(EntityManager em, String namedQuery, ParameterBinder binder) {
+		Query consulta = em.createNamedQuery(namedQuery);
+		binder.bind(consulta);
+		Object resultado = consulta.getSingleResult();
+		return resultado;	
+	}
 	
 	
 	@SuppressWarnings( "rawtypes" )
@@ -72,6 +176,7 @@ public class JpaUtils {
 	@SuppressWarnings( "rawtypes" )
 	public static List executeListResultNamedQuery(EntityManager em, String namedQuery, Object... params) {
 		Query consulta = em.createNamedQuery(namedQuery);
+		// desde ?0; ParameterBinder.positional numera desde ?1
 		int paramNumber = 0;
 		for(Object param: params) {
 			consulta.setParameter(paramNumber++, param);
@@ -83,22 +188,32 @@ public class JpaUtils {
 	@SuppressWarnings( "rawtypes" )
 	public static List executeListResultNamedQuery(EntityManager em, String namedQuery, Map<String, Object> params) {
 		Query consulta = em.createNamedQuery(namedQuery);
-		for(String paramName: params.keySet()) {
-			consulta.setParameter(paramName, params.get(paramName));
+		for(Map.Entry<String, Object> param: params.entrySet()) {
+			consulta.setParameter(param.getKey(), param.getValue());
 		}
 		List resultado = consulta.getResultList();
 		return resultado;	
 	}
 
+	@SuppressWarnings( "rawtypes" )
+	public static List executeListResultNamedQuery(EntityManager em, String namedQuery, ParameterBinder binder) {
+		Query consulta = em.createNamedQuery(namedQuery);
+		binder.bind(consulta);
+		List resultado = consulta.getResultList();
+		return resultado;	
+	}
+
 	
+	// las consultas JPQL pasan por el QueryCache de la factory: se preparan una sola vez
 	public static Object executeSingleResultQuery(EntityManager em, String query) {
-		Query consulta = em.createQuery(query);
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
 		Object resultado = consulta.getSingleResult();
 		return resultado;	
 	}
 
 	public static Object executeSingleResultQuery(EntityManager em, String query, Object... params) {
-		Query consulta = em.createQuery(query);
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		// desde ?0; ParameterBinder.positional numera desde ?1
 		int paramNumber = 0;
 		for(Object param: params) {
 			consulta.setParameter(paramNumber++, param);
@@ -108,24 +223,32 @@ public class JpaUtils {
 	}
 
 	public static Object executeSingleResultQuery(EntityManager em, String query, Map<String, Object> params) {
-		Query consulta = em.createNamedQuery(query);
-		for(String paramName: params.keySet()) {
-			consulta.setParameter(paramName, params.get(paramName));
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		for(Map.Entry<String, Object> param: params.entrySet()) {
+			consulta.setParameter(param.getKey(), param.getValue());
 		}
 		Object resultado = consulta.getSingleResult();
 		return resultado;	
 	}	
+
+	public static Object executeSingleResultQuery(EntityManager em, String query, ParameterBinder binder) {
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		binder.bind(consulta);
+		Object resultado = consulta.getSingleResult();
+		return resultado;	
+	}
 	
 	@SuppressWarnings( "rawtypes" )
 	public static List executeListResultQuery(EntityManager em, String query) {
-		Query consulta = em.createQuery(query);
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
 		List resultado = consulta.getResultList();
 		return resultado;	
 	}
 
 	@SuppressWarnings( "rawtypes" )
 	public static List executeListResultQuery(EntityManager em, String query, Object... params) {
-		Query consulta = em.createQuery(query);
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		// desde ?0; ParameterBinder.positional numera desde ?1
 		int paramNumber = 0;
 		for(Object param: params) {
 			consulta.setParameter(paramNumber++, param);
@@ -136,11 +259,19 @@ public class JpaUtils {
 	
 	@SuppressWarnings( "rawtypes" )
 	public static List executeListResultQuery(EntityManager em, String query, Map<String, Object> params) {
-		Query consulta = em.createNamedQuery(query);
-		for(String paramName: params.keySet()) {
-			consulta.setParameter(paramName, params.get(paramName));
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		for(Map.Entry<String, Object> param: params.entrySet()) {
+			consulta.setParameter(param.getKey(), param.getValue());
 		}
 		List resultado = consulta.getResultList();
 		return resultado;	
 	}
+
+	@SuppressWarnings( "rawtypes" )
+	public static List executeListResultQuery(EntityManager em, String query, ParameterBinder binder) {
+		Query consulta = QueryCache.forEntityManager(em).createQuery(em, query);
+		binder.bind(consulta);
+		List resultado = consulta.getResultList();
+		return resultado;	
+	}
 }
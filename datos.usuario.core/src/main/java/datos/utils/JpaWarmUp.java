@@ -0,0 +1,287 @@
+package datos.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.metamodel.ManagedType;
+
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ExternalConnectionPool;
+import org.eclipse.persistence.sessions.server.Server;
+
+/**
+ * Warms up persistence units at startup, on a background thread:
+ * <ol>
+ * <li>deploys each unit through the JpaUtils registry,</li>
+ * <li>opens <code>connections</code> connections at the same time in the pool
+ *     that serves the transactions, so the pool already has them when the
+ *     first requests arrive,</li>
+ * <li>runs once, with <code>setMaxResults(1)</code> and placeholder parameters,
+ *     every named select declared on the managed classes and their superclasses
+ *     (e.g. the queries of <code>AbstractUsuario</code>), so their JPQL is
+ *     parsed and their SQL prepared,</li>
+ * <li>runs the registered primers (e.g. to fill caches or Bloom filters).</li>
+ * </ol>
+ * Readiness can be checked with {@link #isReady()} or {@link #awaitReady(long, TimeUnit)},
+ * and the time of each phase with {@link #getTimings()}.
+ */
+public class JpaWarmUp implements Runnable {
+
+	private final List<String> unitNames;
+	
+	private final List<Consumer<EntityManager>> primers = new CopyOnWriteArrayList<Consumer<EntityManager>>();
+	
+	private int connections = 1;
+	
+	private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+	
+	private final CountDownLatch finished = new CountDownLatch(1);
+	
+	private volatile boolean ready = false;
+	
+	private volatile Exception failure = null;
+	
+	
+	// == constructores
+	
+	public JpaWarmUp(String... unitNames) {
+		this.unitNames = Arrays.asList(unitNames);
+	}
+	
+	/**
+	 * Number of connections opened in the connection pool of each unit.
+	 */
+	public JpaWarmUp setConnections(int connections) {
+		this.connections = connections;
+		return this;
+	}
+	
+	/**
+	 * Adds a task run with an EntityManager of each unit once it is warmed up.
+	 */
+	public JpaWarmUp addPrimer(Consumer<EntityManager> primer) {
+		primers.add(primer);
+		return this;
+	}
+	
+	
+	// == ejecucion
+	
+	/**
+	 * Starts the warm up on a daemon thread.
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "JpaWarmUp");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	public void run() {
+		long inicio = System.nanoTime();
+		try {
+			for (String unitName : unitNames) {
+				warmUp(unitName);
+			}
+			ready = true;
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			timings.put("total", millisSince(inicio));
+			finished.countDown();
+		}
+	}
+	
+	private void warmUp(String unitName) {
+		long inicio = System.nanoTime();
+		EntityManagerFactory factory = JpaUtils.getEntityManagerFactory(unitName);
+		timings.put(unitName + ".deploy", millisSince(inicio));
+		
+		inicio = System.nanoTime();
+		openConnections(factory);
+		timings.put(unitName + ".connections", millisSince(inicio));
+		
+		EntityManager em = factory.createEntityManager();
+		try {
+			inicio = System.nanoTime();
+			for (Map.Entry<String, String> namedQuery : namedQueries(factory).entrySet()) {
+				if (namedQuery.getValue().trim().toLowerCase().startsWith("select")) {
+					runNamedQuery(em, namedQuery.getKey());
+				}
+			}
+			em.clear();
+			timings.put(unitName + ".namedQueries", millisSince(inicio));
+			
+			inicio = System.nanoTime();
+			for (Consumer<EntityManager> primer : primers) {
+				primer.accept(em);
+			}
+			timings.put(unitName + ".primers", millisSince(inicio));
+		} finally {
+			em.close();
+		}
+	}
+	
+	/**
+	 * Opens the connections at the same time, each one with the transaction of
+	 * its own EntityManager, and releases them. The pool keeps the released
+	 * connections up to its minimum, so while they are opened the minimum is
+	 * raised to <code>connections</code> (capped at the maximum) and then set
+	 * back: the pool shrinks again as they are used. Pools of an external
+	 * DataSource are sized by the DataSource; only their connections are opened.
+	 */
+	private void openConnections(EntityManagerFactory factory) {
+		ConnectionPool pool = factory.unwrap(Server.class).getDefaultConnectionPool();
+		boolean interno = pool != null && !(pool instanceof ExternalConnectionPool);
+		int abiertas = interno ? Math.min(connections, pool.getMaxNumberOfConnections()) : connections;
+		int minimo = interno ? pool.getMinNumberOfConnections() : 0;
+		if (interno && minimo < abiertas) {
+			pool.setMinNumberOfConnections(abiertas);
+		}
+		List<EntityManager> managers = new ArrayList<EntityManager>(abiertas);
+		try {
+			for (int i = 0; i < abiertas; i++) {
+				EntityManager em = factory.createEntityManager();
+				managers.add(em);
+				em.getTransaction().begin();
+				// toma la conexion del pool sin esperar a la primera escritura
+				em.unwrap(Connection.class);
+			}
+		} finally {
+			for (EntityManager em : managers) {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+				em.close();
+			}
+			if (interno) {
+				pool.setMinNumberOfConnections(minimo);
+			}
+		}
+	}
+	
+	// ejecuta la consulta con parametros de relleno; si alguno no tiene relleno no la ejecuta
+	private static void runNamedQuery(EntityManager em, String name) {
+		Query query = em.createNamedQuery(name);
+		for (Parameter<?> parameter : query.getParameters()) {
+			Object valor = placeholder(parameter.getParameterType());
+			if (valor == null) {
+				return;
+			}
+			if (parameter.getName() != null) {
+				query.setParameter(parameter.getName(), valor);
+			} else {
+				query.setParameter(parameter.getPosition(), valor);
+			}
+		}
+		query.setMaxResults(1).getResultList();
+	}
+	
+	private static Object placeholder(Class<?> type) {
+		if (type == String.class) {
+			return "";
+		} else if (type == Integer.class || type == int.class) {
+			return 0;
+		} else if (type == Long.class || type == long.class) {
+			return 0L;
+		} else if (type == Short.class || type == short.class) {
+			return (short) 0;
+		} else if (type == Double.class || type == double.class) {
+			return 0d;
+		} else if (type == Float.class || type == float.class) {
+			return 0f;
+		} else if (type == BigDecimal.class) {
+			return BigDecimal.ZERO;
+		} else if (type == BigInteger.class) {
+			return BigInteger.ZERO;
+		} else if (type == Boolean.class || type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == Date.class) {
+			return new Date(0);
+		}
+		return null;
+	}
+	
+	/**
+	 * Named queries declared on the managed classes of the factory and on
+	 * their superclasses, by name, with their JPQL.
+	 */
+	public static Map<String, String> namedQueries(EntityManagerFactory factory) {
+		Map<String, String> queries = new LinkedHashMap<String, String>();
+		for (ManagedType<?> type : factory.getMetamodel().getManagedTypes()) {
+			for (Class<?> clase = type.getJavaType(); clase != null; clase = clase.getSuperclass()) {
+				NamedQuery namedQuery = clase.getAnnotation(NamedQuery.class);
+				if (namedQuery != null) {
+					queries.put(namedQuery.name(), namedQuery.query());
+				}
+				NamedQueries namedQueries = clase.getAnnotation(NamedQueries.class);
+				if (namedQueries != null) {
+					for (NamedQuery query : namedQueries.value()) {
+						queries.put(query.name(), query.query());
+					}
+				}
+			}
+		}
+		return queries;
+	}
+	
+	private static long millisSince(long inicio) {
+		return (System.nanoTime() - inicio) / 1000000;
+	}
+	
+	
+	// == estado
+	
+	public boolean isReady() {
+		return ready;
+	}
+	
+	public boolean isFinished() {
+		return finished.getCount() == 0;
+	}
+	
+	/**
+	 * Waits until the warm up finishes and tells whether it succeeded.
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		finished.await(timeout, unit);
+		return ready;
+	}
+	
+	public Exception getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * Milliseconds spent in each phase, by <code>unit.phase</code>, plus the total.
+	 */
+	public Map<String, Long> getTimings() {
+		synchronized (timings) {
+			return new LinkedHashMap<String, Long>(timings);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "JpaWarmUp[units=" + unitNames + ", ready=" + ready + ", timings=" + getTimings() + "]";
+	}
+	
+}
@@ -0,0 +1,269 @@
+package datos.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of the n-grams (trigrams by default) of some texts
+ * of each key. Texts are compared in lower case and without accents.
+ * <p>
+ * {@link #containing(String)} intersects the posting lists of the grams of the
+ * searched text and checks the candidates against the indexed texts, so it
+ * answers a substring search without scanning every key.
+ * {@link #similar(String, double, int)} ranks the keys sharing grams with the
+ * searched text by Jaccard similarity of their gram sets (fuzzy search).
+ * <p>
+ * Safe for concurrent use: searches share a read lock, changes take the write lock.
+ *
+ * @param <K>
+ */
+public class NGramIndex<K> {
+
+	public static final int DEFAULT_GRAM_SIZE = 3;
+	
+	private final int n;
+	
+	private final Map<String, Set<K>> postings = new HashMap<String, Set<K>>();
+	
+	private final Map<K, String[]> texts = new HashMap<K, String[]>();
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	
+	// == constructores
+	
+	public NGramIndex() {
+		this(DEFAULT_GRAM_SIZE);
+	}
+	
+	public NGramIndex(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("n must be positive: " + n);
+		}
+		this.n = n;
+	}
+	
+	
+	// == actualizacion
+	
+	/**
+	 * Indexes the texts of the key, replacing the ones indexed before.
+	 * <code>null</code> texts are ignored.
+	 */
+	public void put(K key, String... values) {
+		List<String> normalizados = new ArrayList<String>(values.length);
+		for (String value : values) {
+			if (value != null) {
+				normalizados.add(normalize(value));
+			}
+		}
+		lock.writeLock().lock();
+		try {
+			removeKey(key);
+			texts.put(key, normalizados.toArray(new String[normalizados.size()]));
+			for (String texto : normalizados) {
+				for (String gram : grams(texto)) {
+					Set<K> keys = postings.get(gram);
+					if (keys == null) {
+						keys = new HashSet<K>();
+						postings.put(gram, keys);
+					}
+					keys.add(key);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public void remove(K key) {
+		lock.writeLock().lock();
+		try {
+			removeKey(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			postings.clear();
+			texts.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	private void removeKey(K key) {
+		String[] anteriores = texts.remove(key);
+		if (anteriores == null) {
+			return;
+		}
+		for (String texto : anteriores) {
+			for (String gram : grams(texto)) {
+				Set<K> keys = postings.get(gram);
+				if (keys != null) {
+					keys.remove(key);
+					if (keys.isEmpty()) {
+						postings.remove(gram);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	// == busquedas
+	
+	/**
+	 * Keys with some indexed text that contains <code>text</code>.
+	 * Texts shorter than the gram size are looked up in the gram dictionary.
+	 */
+	public Set<K> containing(String text) {
+		String buscado = normalize(text);
+		lock.readLock().lock();
+		try {
+			if (buscado.isEmpty()) {
+				return new LinkedHashSet<K>(texts.keySet());
+			}
+			Set<K> candidatos = new HashSet<K>();
+			if (buscado.length() < n) {
+				for (Map.Entry<String, Set<K>> posting : postings.entrySet()) {
+					if (posting.getKey().contains(buscado)) {
+						candidatos.addAll(posting.getValue());
+					}
+				}
+			} else {
+				// interseccion empezando por la lista mas corta
+				List<Set<K>> listas = new ArrayList<Set<K>>();
+				for (String gram : grams(buscado)) {
+					Set<K> keys = postings.get(gram);
+					if (keys == null) {
+						return Collections.emptySet();
+					}
+					listas.add(keys);
+				}
+				listas.sort((a, b) -> Integer.compare(a.size(), b.size()));
+				candidatos.addAll(listas.get(0));
+				for (int i = 1; i < listas.size() && !candidatos.isEmpty(); i++) {
+					candidatos.retainAll(listas.get(i));
+				}
+			}
+			// los grams pueden estar en otro orden: confirma contra el texto
+			Set<K> resultado = new LinkedHashSet<K>();
+			for (K key : candidatos) {
+				for (String texto : texts.get(key)) {
+					if (texto.contains(buscado)) {
+						resultado.add(key);
+						break;
+					}
+				}
+			}
+			return resultado;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Keys with some indexed text whose gram set has a Jaccard similarity of at
+	 * least <code>minSimilarity</code> with the one of <code>text</code>, most
+	 * similar first, at most <code>maxResults</code>.
+	 */
+	public List<K> similar(String text, double minSimilarity, int maxResults) {
+		Set<String> buscados = grams(normalize(text));
+		Map<K, Double> similitudes = new HashMap<K, Double>();
+		lock.readLock().lock();
+		try {
+			Set<K> candidatos = new HashSet<K>();
+			for (String gram : buscados) {
+				Set<K> keys = postings.get(gram);
+				if (keys != null) {
+					candidatos.addAll(keys);
+				}
+			}
+			for (K key : candidatos) {
+				double mejor = 0;
+				for (String texto : texts.get(key)) {
+					mejor = Math.max(mejor, jaccard(buscados, grams(texto)));
+				}
+				if (mejor >= minSimilarity) {
+					similitudes.put(key, mejor);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<K> resultado = new ArrayList<K>(similitudes.keySet());
+		resultado.sort((a, b) -> Double.compare(similitudes.get(b), similitudes.get(a)));
+		return resultado.size() > maxResults ? resultado.subList(0, maxResults) : resultado;
+	}
+	
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return texts.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public int getGramCount() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	// == utilidades
+	
+	public static String normalize(String text) {
+		return Normalizer.normalize(text, Normalizer.Form.NFD)
+				.replaceAll("\\p{M}", "")
+				.toLowerCase(Locale.ROOT);
+	}
+	
+	private Set<String> grams(String text) {
+		Set<String> grams = new HashSet<String>();
+		if (text.length() > 0 && text.length() < n) {
+			grams.add(text);
+		}
+		for (int i = 0; i + n <= text.length(); i++) {
+			grams.add(text.substring(i, i + n));
+		}
+		return grams;
+	}
+	
+	private static double jaccard(Set<String> a, Set<String> b) {
+		if (a.isEmpty() || b.isEmpty()) {
+			return 0;
+		}
+		int comunes = 0;
+		for (String gram : a) {
+			if (b.contains(gram)) {
+				comunes++;
+			}
+		}
+		return (double) comunes / (a.size() + b.size() - comunes);
+	}
+	
+	@Override
+	public String toString() {
+		return "NGramIndex[n=" + n + ", keys=" + size() + ", grams=" + getGramCount() + "]";
+	}
+	
+}
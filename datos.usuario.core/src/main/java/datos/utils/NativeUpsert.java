@@ -0,0 +1,318 @@
+package datos.utils;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.Table;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Native SQL upsert of an entity, built from its metamodel. Supports entities
+ * mapped to one table with basic attributes only; table and column names are
+ * taken from <code>@Table</code>/<code>@Column</code> or default to the entity
+ * and attribute names. The version column, if any, is incremented on update
+ * and set to 1 on insert, without checking the current version.
+ *
+ * @param <T>
+ */
+public class NativeUpsert<T> {
+
+	public enum Strategy {
+		/** UPDATE by id and, when no row was updated, INSERT (any database). */
+		UPDATE_THEN_INSERT,
+		/** SQL:2003 MERGE with a VALUES source, one statement per row. */
+		MERGE
+	}
+	
+	private final List<Column<T>> columns = new ArrayList<Column<T>>();
+	
+	private Column<T> id;
+	
+	private Column<T> version;
+	
+	private final String updateSql;
+	
+	private final String insertSql;
+	
+	private final String mergeSql;
+	
+	
+	// == construccion del SQL
+	
+	NativeUpsert(EntityType<T> type) {
+		for (SingularAttribute<? super T, ?> attribute : type.getSingularAttributes()) {
+			if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.BASIC) {
+				throw new UnsupportedOperationException("Native upsert only supports basic attributes: " 
+						+ type.getName() + "." + attribute.getName());
+			}
+			Column<T> column = new Column<T>(attribute);
+			if (attribute.isId()) {
+				id = column;
+			} else if (attribute.isVersion()) {
+				version = column;
+			} else {
+				columns.add(column);
+			}
+		}
+		if (type.getPluralAttributes().size() > 0 || id == null) {
+			throw new UnsupportedOperationException("Native upsert only supports entities with a single id and basic attributes: " 
+					+ type.getName());
+		}
+		Table table = type.getJavaType().getAnnotation(Table.class);
+		String tableName = table != null && !table.name().isEmpty() ? table.name() : type.getName();
+		
+		StringBuilder set = new StringBuilder();
+		StringBuilder names = new StringBuilder(id.name);
+		StringBuilder marks = new StringBuilder("?");
+		StringBuilder mergeSet = new StringBuilder();
+		StringBuilder mergeValues = new StringBuilder("s." + id.name);
+		for (Column<T> column : columns) {
+			set.append(set.length() == 0 ? "" : ", ").append(column.name).append(" = ?");
+			mergeSet.append(mergeSet.length() == 0 ? "" : ", ").append("t.").append(column.name)
+					.append(" = s.").append(column.name);
+			names.append(", ").append(column.name);
+			marks.append(", ?");
+			mergeValues.append(", s.").append(column.name);
+		}
+		String sourceNames = names.toString();
+		if (version != null) {
+			set.append(set.length() == 0 ? "" : ", ")
+					.append(version.name).append(" = coalesce(").append(version.name).append(", 0) + 1");
+			mergeSet.append(mergeSet.length() == 0 ? "" : ", ")
+					.append("t.").append(version.name).append(" = coalesce(t.").append(version.name).append(", 0) + 1");
+			names.append(", ").append(version.name);
+			mergeValues.append(", 1");
+		}
+		
+		if (set.length() == 0) {
+			// solo id: el update no cambia nada pero dice si la fila existe
+			set.append(id.name).append(" = ").append(id.name);
+		}
+		this.updateSql = "update " + tableName + " set " + set + " where " + id.name + " = ?";
+		this.insertSql = "insert into " + tableName + " (" + names + ") values (" + marks 
+				+ (version != null ? ", 1" : "") + ")";
+		this.mergeSql = "merge into " + tableName + " t using (values (" + marks + ")) s (" + sourceNames + ")"
+				+ " on (t." + id.name + " = s." + id.name + ")"
+				+ (mergeSet.length() == 0 ? "" : " when matched then update set " + mergeSet)
+				+ " when not matched then insert (" + names + ") values (" + mergeValues + ")";
+	}
+	
+	
+	// == ejecucion
+	
+	/**
+	 * Upserts one entity with native queries. Must run in a transaction.
+	 * @return whether the row was inserted; always <code>false</code> with
+	 * {@link Strategy#MERGE}, which does not tell
+	 */
+	public boolean upsert(EntityManager em, T entity, Strategy strategy) {
+		if (strategy == Strategy.MERGE) {
+			bind(em.createNativeQuery(mergeSql), entity, true).executeUpdate();
+			return false;
+		}
+		if (bind(em.createNativeQuery(updateSql), entity, false).executeUpdate() == 0) {
+			bind(em.createNativeQuery(insertSql), entity, true).executeUpdate();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Upserts the entities with JDBC batches of <code>batchSize</code> rows: one
+	 * UPDATE batch and one INSERT batch (for the rows not updated) per chunk, or one
+	 * MERGE batch. Falls back to {@link #upsert} when the provider does not expose
+	 * the transaction's JDBC connection. Must run in a transaction.
+	 * @return whether each row was inserted, in iteration order (see {@link #upsert})
+	 */
+	public boolean[] upsertAll(EntityManager em, Collection<T> entities, int batchSize, Strategy strategy) {
+		Connection connection = null;
+		try {
+			connection = em.unwrap(Connection.class);
+		} catch (PersistenceException e) {
+			// el proveedor no expone la conexion
+		}
+		boolean[] insertados = new boolean[entities.size()];
+		int index = 0;
+		if (connection == null) {
+			for (T entity : entities) {
+				insertados[index++] = upsert(em, entity, strategy);
+			}
+			return insertados;
+		}
+		List<T> chunk = new ArrayList<T>(batchSize);
+		try {
+			for (T entity : entities) {
+				chunk.add(entity);
+				if (chunk.size() == batchSize) {
+					upsertChunk(connection, chunk, strategy, insertados, index);
+					index += chunk.size();
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				upsertChunk(connection, chunk, strategy, insertados, index);
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException("Error in native upsert: " + e.getMessage(), e);
+		}
+		return insertados;
+	}
+	
+	// marca en insertados, desde offset, las filas del chunk que se insertaron
+	private void upsertChunk(Connection connection, List<T> chunk, Strategy strategy, 
+			boolean[] insertados, int offset) throws SQLException {
+		if (strategy == Strategy.MERGE) {
+			executeBatch(connection, mergeSql, chunk, true);
+			return;
+		}
+		int[] actualizados = executeBatch(connection, updateSql, chunk, false);
+		List<T> nuevos = new ArrayList<T>();
+		for (int i = 0; i < chunk.size(); i++) {
+			if (actualizados[i] == 0) {
+				nuevos.add(chunk.get(i));
+				insertados[offset + i] = true;
+			}
+		}
+		if (!nuevos.isEmpty()) {
+			executeBatch(connection, insertSql, nuevos, true);
+		}
+	}
+	
+	private int[] executeBatch(Connection connection, String sql, List<T> entities, boolean idFirst) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (T entity : entities) {
+				int index = 1;
+				for (Column<T> column : parameters(idFirst)) {
+					Object value = column.get(entity);
+					if (value == null) {
+						statement.setNull(index, column.sqlType);
+					} else {
+						statement.setObject(index, value);
+					}
+					index++;
+				}
+				statement.addBatch();
+			}
+			return statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private Query bind(Query query, T entity, boolean idFirst) {
+		int index = 1;
+		for (Column<T> column : parameters(idFirst)) {
+			query.setParameter(index++, column.get(entity));
+		}
+		return query;
+	}
+	
+	// columnas en el orden de los parametros: id primero (insert/merge) o al final (update)
+	private List<Column<T>> parameters(boolean idFirst) {
+		List<Column<T>> parameters = new ArrayList<Column<T>>(columns.size() + 1);
+		if (idFirst) {
+			parameters.add(id);
+		}
+		parameters.addAll(columns);
+		if (!idFirst) {
+			parameters.add(id);
+		}
+		return parameters;
+	}
+	
+	
+	private static class Column<T> {
+		
+		final String name;
+		final Member member;
+		final int sqlType;
+		final EnumType enumType;
+		
+		Column(SingularAttribute<? super T, ?> attribute) {
+			this.member = attribute.getJavaMember();
+			AnnotatedElement element = (AnnotatedElement) member;
+			javax.persistence.Column column = element.getAnnotation(javax.persistence.Column.class);
+			this.name = column != null && !column.name().isEmpty() ? column.name() : attribute.getName();
+			Enumerated enumerated = element.getAnnotation(Enumerated.class);
+			this.enumType = enumerated != null ? enumerated.value() : EnumType.ORDINAL;
+			this.sqlType = sqlType(attribute.getJavaType(), enumType);
+			if (member instanceof Field) {
+				((Field) member).setAccessible(true);
+			} else {
+				((Method) member).setAccessible(true);
+			}
+		}
+		
+		Object get(T entity) {
+			Object value;
+			try {
+				value = member instanceof Field ? ((Field) member).get(entity) : ((Method) member).invoke(entity);
+			} catch (Exception e) {
+				throw new PersistenceException("Cannot read attribute " + name + ": " + e.getMessage(), e);
+			}
+			if (value instanceof Enum) {
+				return enumType == EnumType.STRING ? ((Enum<?>) value).name() : ((Enum<?>) value).ordinal();
+			}
+			if (value instanceof Calendar) {
+				return new java.sql.Timestamp(((Calendar) value).getTimeInMillis());
+			}
+			if (value instanceof Date && !(value instanceof java.sql.Timestamp) 
+					&& !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)) {
+				return new java.sql.Timestamp(((Date) value).getTime());
+			}
+			return value;
+		}
+		
+		private static int sqlType(Class<?> type, EnumType enumType) {
+			if (type.isEnum()) {
+				return enumType == EnumType.STRING ? Types.VARCHAR : Types.INTEGER;
+			}
+			if (type == Long.class || type == long.class) {
+				return Types.BIGINT;
+			}
+			if (type == Integer.class || type == int.class) {
+				return Types.INTEGER;
+			}
+			if (type == Short.class || type == short.class) {
+				return Types.SMALLINT;
+			}
+			if (type == Boolean.class || type == boolean.class) {
+				return Types.BOOLEAN;
+			}
+			if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+				return Types.DOUBLE;
+			}
+			if (Number.class.isAssignableFrom(type)) {
+				return Types.DECIMAL;
+			}
+			if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)) {
+				return type == java.sql.Date.class ? Types.DATE 
+						: type == java.sql.Time.class ? Types.TIME : Types.TIMESTAMP;
+			}
+			if (type == byte[].class) {
+				return Types.VARBINARY;
+			}
+			return Types.VARCHAR;
+		}
+	}
+	
+}
@@ -0,0 +1,127 @@
+package datos.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.persistence.OptimisticLockException;
+
+/**
+ * Runs a read-modify-write unit of work in a transaction of a DAO and, when
+ * the commit fails with an OptimisticLockException (a concurrent change of a
+ * versioned entity), rolls back, discards the stale state and runs it again
+ * after an exponential backoff with jitter.
+ * <p>
+ * The work must read the entities it modifies (e.g. with findById), so each
+ * attempt sees the current version. Only versioned entities (e.g. a Usuario
+ * that extends AbstractUsuarioVersionado) raise OptimisticLockException.
+ */
+public class OptimisticRetryExecutor {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+	
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+	
+	private final int maxAttempts;
+	
+	private final long initialBackoffMillis;
+	
+	private final long maxBackoffMillis;
+	
+	private final AtomicLong retries = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	
+	// == constructores
+	
+	public OptimisticRetryExecutor() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+	
+	public OptimisticRetryExecutor(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+	
+	
+	// == ejecucion
+	
+	public void execute(GenericJpaDAO<?, ?> dao, Runnable work) {
+		execute(dao, () -> {
+			work.run();
+			return null;
+		});
+	}
+	
+	public <R> R execute(GenericJpaDAO<?, ?> dao, Supplier<R> work) {
+		for (int intento = 1; ; intento++) {
+			dao.beginTransaction();
+			try {
+				R resultado = work.get();
+				dao.commit();
+				return resultado;
+			} catch (RuntimeException e) {
+				dao.rollback();
+				if (!isOptimisticLockFailure(e) || intento >= maxAttempts) {
+					failures.incrementAndGet();
+					throw e;
+				}
+				// descarta las entidades con la version vieja antes de reintentar
+				dao.clear();
+				if (dao.getEntityCache() != null) {
+					dao.getEntityCache().clear();
+				}
+				retries.incrementAndGet();
+				backoff(intento);
+			}
+		}
+	}
+	
+	public static boolean isOptimisticLockFailure(Throwable e) {
+		for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+			if (causa instanceof OptimisticLockException) {
+				return true;
+			}
+			if (causa.getCause() == causa) {
+				break;
+			}
+		}
+		return false;
+	}
+	
+	private void backoff(int intento) {
+		long maximo = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(intento - 1, 20));
+		if (maximo <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(maximo / 2 + ThreadLocalRandom.current().nextLong(maximo / 2 + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to retry", e);
+		}
+	}
+	
+	
+	// == estadisticas
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	public long getRetryCount() {
+		return retries.get();
+	}
+	
+	public long getFailureCount() {
+		return failures.get();
+	}
+	
+}
@@ -0,0 +1,44 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of results read with keyset pagination.
+ * The continuation token is the id of the last element of the page and
+ * must be passed back to read the next one.
+ *
+ * @param <T>
+ * @param <ID>
+ */
+public class Page<T, ID extends Serializable> {
+
+	private final List<T> content;
+	
+	private final ID nextId;
+	
+	private final boolean hasNext;
+	
+	public Page(List<T> content, ID nextId, boolean hasNext) {
+		this.content = content;
+		this.nextId = nextId;
+		this.hasNext = hasNext;
+	}
+	
+	public List<T> getContent() {
+		return content;
+	}
+	
+	public int size() {
+		return content.size();
+	}
+	
+	public ID getNextId() {
+		return nextId;
+	}
+	
+	public boolean hasNext() {
+		return hasNext;
+	}
+	
+}
@@ -0,0 +1,27 @@
+package datos.utils;
+
+import javax.persistence.Query;
+
+/**
+ * Sets the parameters of a query. Replaces parameter maps in the
+ * <code>execute*Query</code> helpers: a binder kept in a field, or a lambda
+ * that calls {@link QueryParameter#bind}, costs no collection per call.
+ */
+@FunctionalInterface
+public interface ParameterBinder {
+
+	void bind(Query query);
+	
+	/**
+	 * Binds <code>values</code> to <code>?1</code>, <code>?2</code>... as JPQL
+	 * numbers them. The <code>Object...</code> helpers bind from <code>?0</code>.
+	 */
+	static ParameterBinder positional(Object... values) {
+		return query -> {
+			for (int i = 0; i < values.length; i++) {
+				query.setParameter(i + 1, values[i]);
+			}
+		};
+	}
+	
+}
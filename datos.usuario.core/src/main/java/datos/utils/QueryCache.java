@@ -0,0 +1,160 @@
+package datos.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+/**
+ * Cache of prepared query definitions, keyed by JPQL text and result type.
+ * The first time a query is seen it is registered in the EntityManagerFactory
+ * as a named query (<code>addNamedQuery</code>), so the provider parses and
+ * prepares it once. Later calls, from any thread or EntityManager of the
+ * same factory, create it with <code>createNamedQuery</code>.
+ * <p>
+ * There is one cache per EntityManagerFactory. Named queries cannot be removed
+ * from a factory, so the names are not derived from the queries: the cache
+ * registers at most <code>maxSize + 1</code> names and the name of an evicted
+ * query is reused for the next one, which replaces it in the factory. The
+ * memory used is bounded by the cache size even for ad-hoc JPQL text; the
+ * lookup of a name and the creation of its query are done under the cache
+ * lock so a name is never read while it is being reused.
+ */
+public class QueryCache {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+	
+	private static final String PREFIX = QueryCache.class.getName() + ":";
+	
+	// los nombres de cada cache son distintos: la factory de un EntityManager
+	// puede ser otro objeto que comparte las consultas con nombre
+	private static final AtomicInteger instances = new AtomicInteger();
+	
+	private static final Map<EntityManagerFactory, QueryCache> caches = 
+			new WeakHashMap<EntityManagerFactory, QueryCache>();
+	
+	private final BoundedCache<String, String> names;
+	
+	// nombres de consultas desalojadas, para reutilizar
+	private final Deque<String> freeNames = new ArrayDeque<String>();
+	
+	private int registered = 0;
+	
+	private final String prefix = PREFIX + instances.incrementAndGet() + ":";
+	
+	
+	// == constructores
+	
+	public static QueryCache forFactory(EntityManagerFactory factory) {
+		synchronized (caches) {
+			QueryCache cache = caches.get(factory);
+			if (cache == null) {
+				cache = new QueryCache(DEFAULT_MAX_SIZE);
+				caches.put(factory, cache);
+			}
+			return cache;
+		}
+	}
+	
+	public static QueryCache forEntityManager(EntityManager em) {
+		return forFactory(em.getEntityManagerFactory());
+	}
+	
+	public QueryCache(int maxSize) {
+		this.names = new BoundedCache<String, String>(maxSize);
+		this.names.setEvictionListener((key, name) -> freeNames.push(name));
+	}
+	
+	
+	// == consultas
+	
+	public Query createQuery(EntityManager em, String jpql) {
+		String key = "Query|" + jpql;
+		synchronized (this) {
+			String name = names.get(key);
+			if (name != null) {
+				return em.createNamedQuery(name);
+			}
+		}
+		Query query = em.createQuery(jpql);
+		register(em, key, query);
+		return query;
+	}
+	
+	public <R> TypedQuery<R> createQuery(EntityManager em, String jpql, Class<R> resultType) {
+		return createQuery(em, jpql, resultType, manager -> manager.createQuery(jpql, resultType));
+	}
+	
+	/**
+	 * Returns the query cached under <code>key</code>, or builds it with
+	 * <code>builder</code> (e.g. from a CriteriaQuery) and caches it.
+	 */
+	public <R> TypedQuery<R> createQuery(EntityManager em, String key, Class<R> resultType, 
+			Function<EntityManager, TypedQuery<R>> builder) {
+		key = resultType.getName() + "|" + key;
+		synchronized (this) {
+			String name = names.get(key);
+			if (name != null) {
+				return em.createNamedQuery(name, resultType);
+			}
+		}
+		TypedQuery<R> query = builder.apply(em);
+		register(em, key, query);
+		return query;
+	}
+	
+	// el nombre de una consulta desalojada queda libre y se reutiliza
+	private synchronized void register(EntityManager em, String key, Query query) {
+		if (names.containsKey(key)) {
+			// otro hilo la registro mientras se preparaba
+			return;
+		}
+		String name = freeNames.isEmpty() ? prefix + registered++ : freeNames.pop();
+		em.getEntityManagerFactory().addNamedQuery(name, query);
+		names.put(key, name);
+	}
+	
+	/**
+	 * Number of names registered in the factory, at most the cache size plus one.
+	 */
+	public synchronized int getRegisteredCount() {
+		return registered;
+	}
+	
+	
+	// == estadisticas
+	
+	public int size() {
+		return names.size();
+	}
+	
+	public long getHitCount() {
+		return names.getHitCount();
+	}
+	
+	public long getMissCount() {
+		return names.getMissCount();
+	}
+	
+	public long getEvictionCount() {
+		return names.getEvictionCount();
+	}
+	
+	public double getHitRate() {
+		return names.getHitRate();
+	}
+	
+	@Override
+	public String toString() {
+		return "QueryCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() 
+				+ ", evictions=" + getEvictionCount() + "]";
+	}
+	
+}
@@ -0,0 +1,66 @@
+package datos.utils;
+
+import javax.persistence.Query;
+
+/**
+ * A typed parameter slot of a query, declared once (usually as a constant)
+ * and bound with each call without building maps:
+ * <pre>
+ *   static final QueryParameter&lt;String&gt; NUM_DOCUMENTO = QueryParameter.named("numDocumento", String.class);
+ *   ...
+ *   NUM_DOCUMENTO.bind(query, numDocumento);
+ * </pre>
+ *
+ * @param <V>
+ */
+public class QueryParameter<V> {
+
+	private final String name;
+	
+	private final int position;
+	
+	private final Class<V> type;
+	
+	private QueryParameter(String name, int position, Class<V> type) {
+		this.name = name;
+		this.position = position;
+		this.type = type;
+	}
+	
+	public static <V> QueryParameter<V> named(String name, Class<V> type) {
+		return new QueryParameter<V>(name, -1, type);
+	}
+	
+	/**
+	 * @param position the number written in the JPQL: 1 for <code>?1</code>,
+	 *        0 for the <code>?0</code> of the <code>Object...</code> helpers
+	 */
+	public static <V> QueryParameter<V> positional(int position, Class<V> type) {
+		if (position < 0) {
+			throw new IllegalArgumentException("Positional parameters start at 0: " + position);
+		}
+		return new QueryParameter<V>(null, position, type);
+	}
+	
+	public Query bind(Query query, V value) {
+		return name != null ? query.setParameter(name, value) : query.setParameter(position, value);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getPosition() {
+		return position;
+	}
+	
+	public Class<V> getType() {
+		return type;
+	}
+	
+	@Override
+	public String toString() {
+		return "QueryParameter[" + (name != null ? ":" + name : "?" + position) + " " + type.getSimpleName() + "]";
+	}
+	
+}
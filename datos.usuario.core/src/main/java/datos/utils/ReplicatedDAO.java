@@ -0,0 +1,382 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+/**
+ * GenericDAO that sends writes and transactions to a primary persistence unit
+ * and reads to replicas, chosen round-robin or by lowest latency (moving
+ * average of the last reads).
+ * <p>
+ * Reads go to the primary while the calling thread has a transaction open in
+ * it, and for <code>stickyMillis</code> after its last write or commit, so a
+ * thread reads its own writes even if the replicas lag behind. A read that
+ * fails on a replica is retried on the primary.
+ * <p>
+ * Each replica read uses a new EntityManager, closed when it ends, so the
+ * entities it returns are detached and later reads never come from a stale
+ * persistence context. Detached entities can be saved with {@link #update}.
+ *
+ * @param <D> DAO type of each persistence unit
+ * @param <T>
+ * @param <ID>
+ */
+public class ReplicatedDAO<D extends GenericJpaDAO<T, ID>, T, ID extends Serializable> implements GenericDAO<T, ID> {
+
+	public enum ReplicaSelection {
+		ROUND_ROBIN, LEAST_LATENCY
+	}
+	
+	// peso de la ultima lectura en la latencia media
+	private static final double ALPHA = 0.2;
+	
+	private final D primary;
+	
+	private final List<D> replicas;
+	
+	private volatile ReplicaSelection selection = ReplicaSelection.ROUND_ROBIN;
+	
+	private volatile long stickyMillis = 0;
+	
+	private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+	
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	
+	// latencia media de cada replica en nanosegundos, como bits de double
+	private final AtomicLongArray latencies;
+	
+	private final AtomicLong replicaReads = new AtomicLong();
+	private final AtomicLong primaryReads = new AtomicLong();
+	private final AtomicLong failovers = new AtomicLong();
+	
+	
+	// == constructores
+	
+	public ReplicatedDAO(EntityManagerFactory primary, List<EntityManagerFactory> replicas, 
+			Function<EntityManagerFactory, D> daoFactory) {
+		this.primary = daoFactory.apply(primary);
+		List<D> daos = new ArrayList<D>(replicas.size());
+		for (EntityManagerFactory factory : replicas) {
+			daos.add(daoFactory.apply(factory));
+		}
+		this.replicas = Collections.unmodifiableList(daos);
+		this.latencies = new AtomicLongArray(daos.size());
+	}
+	
+	
+	// == configuracion
+	
+	public D getPrimary() {
+		return primary;
+	}
+	
+	public List<D> getReplicas() {
+		return replicas;
+	}
+	
+	public ReplicaSelection getReplicaSelection() {
+		return selection;
+	}
+	
+	public void setReplicaSelection(ReplicaSelection selection) {
+		this.selection = selection;
+	}
+	
+	public long getStickyMillis() {
+		return stickyMillis;
+	}
+	
+	/**
+	 * Time the reads of a thread keep going to the primary after its last
+	 * write or commit. It should cover the replication lag.
+	 */
+	public void setStickyMillis(long stickyMillis) {
+		this.stickyMillis = stickyMillis;
+	}
+	
+	
+	// == lecturas
+	
+	/**
+	 * Runs a read on a replica, or on the primary when the calling thread
+	 * must read its own writes or there are no replicas.
+	 */
+	public <R> R read(Function<? super D, R> work) {
+		if (readsFromPrimary()) {
+			return readPrimary(work);
+		}
+		int replica = chooseReplica();
+		D dao = replicas.get(replica);
+		long inicio = System.nanoTime();
+		try {
+			R resultado = work.apply(dao);
+			record(replica, System.nanoTime() - inicio);
+			replicaReads.incrementAndGet();
+			return resultado;
+		} catch (PersistenceException e) {
+			// penaliza la replica y lee del primario
+			record(replica, 2 * Math.max(System.nanoTime() - inicio, averageLatency(replica)));
+			failovers.incrementAndGet();
+			return readPrimary(work);
+		} finally {
+			dao.release();
+		}
+	}
+	
+	/**
+	 * Reads from the primary. Outside a transaction its EntityManager is closed
+	 * after the read, so the next one does not see a stale persistence context.
+	 */
+	private <R> R readPrimary(Function<? super D, R> work) {
+		primaryReads.incrementAndGet();
+		boolean transaccion = primary.isTransactionActive();
+		try {
+			return work.apply(primary);
+		} finally {
+			if (!transaccion) {
+				primary.release();
+			}
+		}
+	}
+	
+	// isTransactionActive no crea un EntityManager en el primario
+	private boolean readsFromPrimary() {
+		if (replicas.isEmpty() || primary.isTransactionActive()) {
+			return true;
+		}
+		Long escritura = lastWrite.get();
+		return escritura != null && System.currentTimeMillis() - escritura < stickyMillis;
+	}
+	
+	private int chooseReplica() {
+		if (selection == ReplicaSelection.ROUND_ROBIN || replicas.size() == 1) {
+			return Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+		}
+		int mejor = 0;
+		for (int i = 1; i < replicas.size(); i++) {
+			if (averageLatency(i) < averageLatency(mejor)) {
+				mejor = i;
+			}
+		}
+		return mejor;
+	}
+	
+	private void record(int replica, long nanos) {
+		while (true) {
+			long actual = latencies.get(replica);
+			double media = Double.longBitsToDouble(actual);
+			double nueva = actual == 0 ? nanos : media + ALPHA * (nanos - media);
+			if (latencies.compareAndSet(replica, actual, Double.doubleToLongBits(nueva))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Moving average of the read latency of the replica, in nanoseconds
+	 * (0 until its first read).
+	 */
+	public long averageLatency(int replica) {
+		return (long) Double.longBitsToDouble(latencies.get(replica));
+	}
+	
+	public T findById(ID id) {
+		return read(dao -> dao.findById(id));
+	}
+	
+	/**
+	 * Locking reads always go to the primary.
+	 */
+	public T findById(ID id, boolean lock) {
+		return lock ? primary.findById(id, true) : findById(id);
+	}
+	
+	public List<T> findByIds(Collection<ID> ids) {
+		return read(dao -> dao.findByIds(ids));
+	}
+	
+	public List<T> findAll() {
+		return read(dao -> dao.findAll());
+	}
+	
+	public Stream<T> streamAll() {
+		return streamAll(GenericJpaDAO.DEFAULT_FETCH_SIZE);
+	}
+	
+	/**
+	 * Streams from one replica; its EntityManager is closed with the stream.
+	 * The primary's one is closed too, unless the stream is read in a transaction.
+	 */
+	public Stream<T> streamAll(int fetchSize) {
+		if (readsFromPrimary()) {
+			primaryReads.incrementAndGet();
+			if (primary.isTransactionActive()) {
+				return primary.streamAll(fetchSize);
+			}
+			return primary.streamAll(fetchSize).onClose(primary::release);
+		}
+		D dao = replicas.get(chooseReplica());
+		replicaReads.incrementAndGet();
+		return dao.streamAll(fetchSize).onClose(dao::release);
+	}
+	
+	public Page<T, ID> findFirstPage(int pageSize) {
+		return read(dao -> dao.findFirstPage(pageSize));
+	}
+	
+	public Page<T, ID> findPage(ID lastId, int pageSize) {
+		return read(dao -> dao.findPage(lastId, pageSize));
+	}
+	
+	public List<T> search(Filter filter, Sort sort) {
+		return read(dao -> dao.search(filter, sort));
+	}
+	
+	public List<T> search(Filter filter, Sort sort, int firstResult, int maxResults) {
+		return read(dao -> dao.search(filter, sort, firstResult, maxResults));
+	}
+	
+	public long count() {
+		return read(dao -> dao.count());
+	}
+	
+	public boolean existsById(ID id) {
+		return read(dao -> dao.existsById(id));
+	}
+	
+	public boolean existsBy(String attribute, Object value) {
+		return read(dao -> dao.existsBy(attribute, value));
+	}
+	
+	
+	// == consultas con nombre
+	
+	public T findSingleByNamedQuery(String namedQuery, ParameterBinder binder) {
+		return read(dao -> dao.executeSingleResultNamedQuery(namedQuery, binder));
+	}
+	
+	public List<T> findByNamedQuery(String namedQuery, ParameterBinder binder) {
+		return read(dao -> dao.executeListResultNamedQuery(namedQuery, binder));
+	}
+	
+	public T findSingleByQuery(String query, ParameterBinder binder) {
+		return read(dao -> dao.executeSingleResultQuery(query, binder));
+	}
+	
+	public List<T> findByQuery(String query, ParameterBinder binder) {
+		return read(dao -> dao.executeListResultQuery(query, binder));
+	}
+	
+	
+	// == escrituras
+	
+	/**
+	 * Runs a write on the primary and starts the read-your-writes window.
+	 */
+	public <R> R write(Function<? super D, R> work) {
+		try {
+			return work.apply(primary);
+		} finally {
+			lastWrite.set(System.currentTimeMillis());
+		}
+	}
+	
+	public T create(T entity) {
+		return write(dao -> dao.create(entity));
+	}
+	
+	public T update(T entity) {
+		return write(dao -> dao.update(entity));
+	}
+	
+	public void upsert(T entity) {
+		write(dao -> {
+			dao.upsert(entity);
+			return null;
+		});
+	}
+	
+	public void delete(T entity) {
+		write(dao -> {
+			dao.delete(entity);
+			return null;
+		});
+	}
+	
+	public int createAll(Collection<T> entities) {
+		return write(dao -> dao.createAll(entities));
+	}
+	
+	public int updateAll(Collection<T> entities) {
+		return write(dao -> dao.updateAll(entities));
+	}
+	
+	public int upsertAll(Collection<T> entities) {
+		return write(dao -> dao.upsertAll(entities));
+	}
+	
+	public int deleteAll() {
+		return write(dao -> dao.deleteAll());
+	}
+	
+	public int deleteAll(int chunkSize) {
+		return write(dao -> dao.deleteAll(chunkSize));
+	}
+	
+	
+	// == Transacciones
+	
+	public void beginTransaction() {
+		primary.beginTransaction();
+	}
+	
+	public boolean isTransactionActive() {
+		return primary.isTransactionActive();
+	}
+	
+	public void commit() {
+		try {
+			primary.commit();
+		} finally {
+			lastWrite.set(System.currentTimeMillis());
+		}
+	}
+	
+	public void rollback() {
+		primary.rollback();
+	}
+	
+	
+	// == estadisticas
+	
+	public long getReplicaReadCount() {
+		return replicaReads.get();
+	}
+	
+	public long getPrimaryReadCount() {
+		return primaryReads.get();
+	}
+	
+	public long getFailoverCount() {
+		return failovers.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "ReplicatedDAO[replicas=" + replicas.size() + ", selection=" + selection 
+				+ ", replicaReads=" + getReplicaReadCount() + ", primaryReads=" + getPrimaryReadCount() 
+				+ ", failovers=" + getFailoverCount() + "]";
+	}
+	
+}
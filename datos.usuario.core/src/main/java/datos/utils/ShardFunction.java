@@ -0,0 +1,40 @@
+package datos.utils;
+
+/**
+ * Chooses the shard of an id, between 0 and <code>shards - 1</code>.
+ * The function must always give the same shard for the same id.
+ *
+ * @param <ID>
+ */
+@FunctionalInterface
+public interface ShardFunction<ID> {
+
+	int shard(ID id, int shards);
+	
+	/**
+	 * Spreads the ids by <code>hashCode</code>.
+	 */
+	static <ID> ShardFunction<ID> hash() {
+		return (id, shards) -> Math.floorMod(id.hashCode(), shards);
+	}
+	
+	/**
+	 * Sends the ids whose text starts with <code>prefixes[i]</code> followed by
+	 * <code>separator</code> to shard <code>i</code>, e.g. <code>prefix("-", "100", "200")</code>
+	 * for codigos like <code>100-01</code>. Other ids are spread by the hash of their prefix.
+	 */
+	static <ID> ShardFunction<ID> prefix(String separator, String... prefixes) {
+		return (id, shards) -> {
+			String text = id.toString();
+			int end = text.indexOf(separator);
+			String prefix = end < 0 ? text : text.substring(0, end);
+			for (int i = 0; i < prefixes.length && i < shards; i++) {
+				if (prefixes[i].equals(prefix)) {
+					return i;
+				}
+			}
+			return Math.floorMod(prefix.hashCode(), shards);
+		};
+	}
+	
+}
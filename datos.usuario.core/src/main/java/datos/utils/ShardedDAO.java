@@ -0,0 +1,441 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.metamodel.ManagedType;
+
+/**
+ * GenericDAO over several persistence units (shards). Operations on one entity
+ * go to the shard chosen by the {@link ShardFunction} of its id; findAll,
+ * count, searches and named queries run on every shard in parallel
+ * (scatter-gather) and their results are merged.
+ * <p>
+ * Each shard has its own DAO, created from its EntityManagerFactory, so every
+ * thread works with its own EntityManagers. Parallel reads run on a pool with
+ * one thread per shard and return detached entities; they do not see the
+ * uncommitted changes of the calling thread.
+ * <p>
+ * Transactions are begun and committed on every shard, one after another,
+ * without two-phase commit: if a shard fails to commit, the shards committed
+ * before it keep their changes.
+ *
+ * @param <D> DAO type of each shard
+ * @param <T>
+ * @param <ID>
+ */
+public class ShardedDAO<D extends GenericJpaDAO<T, ID>, T, ID extends Serializable> implements GenericDAO<T, ID> {
+
+	private static final AtomicInteger pools = new AtomicInteger();
+	
+	private final List<D> shards;
+	
+	private final ShardFunction<ID> shardFunction;
+	
+	private final ExecutorService executor;
+	
+	
+	// == constructores
+	
+	public ShardedDAO(List<EntityManagerFactory> factories, Function<EntityManagerFactory, D> daoFactory, 
+			ShardFunction<ID> shardFunction) {
+		if (factories.isEmpty()) {
+			throw new IllegalArgumentException("At least one shard is required");
+		}
+		List<D> daos = new ArrayList<D>(factories.size());
+		for (EntityManagerFactory factory : factories) {
+			daos.add(daoFactory.apply(factory));
+		}
+		this.shards = Collections.unmodifiableList(daos);
+		this.shardFunction = shardFunction;
+		int pool = pools.incrementAndGet();
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread thread = new Thread(r, "ShardedDAO-" + pool + "-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	
+	// == shards
+	
+	public int getShardCount() {
+		return shards.size();
+	}
+	
+	public List<D> getShards() {
+		return shards;
+	}
+	
+	public int shardOf(ID id) {
+		int shard = shardFunction.shard(id, shards.size());
+		if (shard < 0 || shard >= shards.size()) {
+			throw new IllegalStateException("Shard function returned " + shard + " for " + id 
+					+ " with " + shards.size() + " shards");
+		}
+		return shard;
+	}
+	
+	public D shardFor(ID id) {
+		return shards.get(shardOf(id));
+	}
+	
+	public ID getId(T entity) {
+		return shards.get(0).getId(entity);
+	}
+	
+	/**
+	 * Runs <code>work</code> on every shard in parallel, each with its own
+	 * EntityManager closed when it ends. Returns the results in shard order.
+	 */
+	public <R> List<R> scatter(Function<? super D, R> work) {
+		List<CompletableFuture<R>> futures = new ArrayList<CompletableFuture<R>>(shards.size());
+		for (D dao : shards) {
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return work.apply(dao);
+				} finally {
+					dao.release();
+				}
+			}, executor));
+		}
+		List<R> resultados = new ArrayList<R>(shards.size());
+		try {
+			for (CompletableFuture<R> future : futures) {
+				resultados.add(future.join());
+			}
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new PersistenceException(e.getCause());
+		}
+		return resultados;
+	}
+	
+	/**
+	 * Runs <code>work</code> on every shard in parallel and concatenates the lists.
+	 */
+	public <R> List<R> gather(Function<? super D, List<R>> work) {
+		List<R> resultado = new ArrayList<R>();
+		for (List<R> parcial : scatter(work)) {
+			resultado.addAll(parcial);
+		}
+		return resultado;
+	}
+	
+	/**
+	 * Stops the scatter-gather threads.
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+	
+	
+	// == busquedas
+	
+	public T findById(ID id) {
+		return shardFor(id).findById(id);
+	}
+	
+	public T findById(ID id, boolean lock) {
+		return shardFor(id).findById(id, lock);
+	}
+	
+	public List<T> findByIds(Collection<ID> ids) {
+		Map<D, List<ID>> porShard = new HashMap<D, List<ID>>();
+		for (ID id : ids) {
+			if (id != null) {
+				porShard.computeIfAbsent(shardFor(id), dao -> new ArrayList<ID>()).add(id);
+			}
+		}
+		Map<ID, T> encontrados = new HashMap<ID, T>();
+		for (T entity : gather(dao -> porShard.containsKey(dao) ? 
+				dao.findByIds(porShard.get(dao)) : Collections.<T>emptyList())) {
+			if (entity != null) {
+				encontrados.put(getId(entity), entity);
+			}
+		}
+		List<T> resultado = new ArrayList<T>(ids.size());
+		for (ID id : ids) {
+			resultado.add(id == null ? null : encontrados.get(id));
+		}
+		return resultado;
+	}
+	
+	public List<T> findAll() {
+		return gather(dao -> dao.findAll());
+	}
+	
+	public Stream<T> streamAll() {
+		return streamAll(GenericJpaDAO.DEFAULT_FETCH_SIZE);
+	}
+	
+	/**
+	 * Streams the shards one after another, each ordered by id.
+	 */
+	public Stream<T> streamAll(int fetchSize) {
+		return shards.stream().flatMap(dao -> dao.streamAll(fetchSize));
+	}
+	
+	public Page<T, ID> findFirstPage(int pageSize) {
+		return findPage(null, pageSize);
+	}
+	
+	/**
+	 * Keyset pagination over all the shards: reads a page from each one and
+	 * keeps the <code>pageSize</code> lowest ids. Ids must be Comparable.
+	 */
+	public Page<T, ID> findPage(ID lastId, int pageSize) {
+		List<Page<T, ID>> paginas = scatter(dao -> dao.findPage(lastId, pageSize));
+		List<T> resultado = new ArrayList<T>();
+		boolean hasNext = false;
+		for (Page<T, ID> pagina : paginas) {
+			resultado.addAll(pagina.getContent());
+			hasNext |= pagina.hasNext();
+		}
+		resultado.sort(byId());
+		if (resultado.size() > pageSize) {
+			resultado = resultado.subList(0, pageSize);
+			hasNext = true;
+		}
+		ID nextId = resultado.isEmpty() ? lastId : getId(resultado.get(resultado.size() - 1));
+		return new Page<T, ID>(resultado, nextId, hasNext);
+	}
+	
+	public List<T> search(Filter filter, Sort sort) {
+		return search(filter, sort, 0, -1);
+	}
+	
+	/**
+	 * Reads <code>firstResult + maxResults</code> rows from each shard and
+	 * merges them in memory with the same order.
+	 */
+	public List<T> search(Filter filter, Sort sort, int firstResult, int maxResults) {
+		int porShard = maxResults < 0 ? -1 : firstResult + maxResults;
+		List<T> resultado = gather(dao -> dao.search(filter, sort, 0, porShard));
+		if (!sort.getOrders().isEmpty()) {
+			resultado.sort(comparator(sort));
+		}
+		int desde = Math.min(firstResult, resultado.size());
+		int hasta = maxResults < 0 ? resultado.size() : Math.min(desde + maxResults, resultado.size());
+		return resultado.subList(desde, hasta);
+	}
+	
+	
+	// == consultas con nombre
+	
+	/**
+	 * Runs the named query on every shard and concatenates the results.
+	 */
+	public List<T> findByNamedQuery(String namedQuery, ParameterBinder binder) {
+		return gather(dao -> dao.executeListResultNamedQuery(namedQuery, binder));
+	}
+	
+	/**
+	 * Runs the single result named query on every shard and returns the first
+	 * result found, in shard order, or <code>null</code>.
+	 */
+	public T findSingleByNamedQuery(String namedQuery, ParameterBinder binder) {
+		for (T resultado : scatter(dao -> dao.executeSingleResultNamedQuery(namedQuery, binder))) {
+			if (resultado != null) {
+				return resultado;
+			}
+		}
+		return null;
+	}
+	
+	
+	// == conteo y existencia
+	
+	public long count() {
+		long total = 0;
+		for (Long parcial : scatter(dao -> dao.count())) {
+			total += parcial;
+		}
+		return total;
+	}
+	
+	public boolean existsById(ID id) {
+		return id != null && shardFor(id).existsById(id);
+	}
+	
+	public boolean existsBy(String attribute, Object value) {
+		return scatter(dao -> dao.existsBy(attribute, value)).contains(Boolean.TRUE);
+	}
+	
+	
+	// == operaciones CRUD
+	
+	public T create(T entity) {
+		return shardFor(getId(entity)).create(entity);
+	}
+	
+	public T update(T entity) {
+		return shardFor(getId(entity)).update(entity);
+	}
+	
+	public void upsert(T entity) {
+		shardFor(getId(entity)).upsert(entity);
+	}
+	
+	public void delete(T entity) {
+		shardFor(getId(entity)).delete(entity);
+	}
+	
+	public int createAll(Collection<T> entities) {
+		int escritos = 0;
+		for (Map.Entry<D, List<T>> grupo : porShard(entities).entrySet()) {
+			escritos += grupo.getKey().createAll(grupo.getValue());
+		}
+		return escritos;
+	}
+	
+	public int updateAll(Collection<T> entities) {
+		int escritos = 0;
+		for (Map.Entry<D, List<T>> grupo : porShard(entities).entrySet()) {
+			escritos += grupo.getKey().updateAll(grupo.getValue());
+		}
+		return escritos;
+	}
+	
+	public int upsertAll(Collection<T> entities) {
+		int escritos = 0;
+		for (Map.Entry<D, List<T>> grupo : porShard(entities).entrySet()) {
+			escritos += grupo.getKey().upsertAll(grupo.getValue());
+		}
+		return escritos;
+	}
+	
+	public int deleteAll() {
+		int borrados = 0;
+		for (Integer parcial : scatter(dao -> dao.deleteAll())) {
+			borrados += parcial;
+		}
+		return borrados;
+	}
+	
+	public int deleteAll(int chunkSize) {
+		int borrados = 0;
+		for (Integer parcial : scatter(dao -> dao.deleteAll(chunkSize))) {
+			borrados += parcial;
+		}
+		return borrados;
+	}
+	
+	private Map<D, List<T>> porShard(Collection<T> entities) {
+		Map<D, List<T>> grupos = new LinkedHashMap<D, List<T>>();
+		for (T entity : entities) {
+			grupos.computeIfAbsent(shardFor(getId(entity)), dao -> new ArrayList<T>()).add(entity);
+		}
+		return grupos;
+	}
+	
+	
+	// == Transacciones
+	
+	public void beginTransaction() {
+		for (D dao : shards) {
+			dao.beginTransaction();
+		}
+	}
+	
+	public boolean isTransactionActive() {
+		for (D dao : shards) {
+			if (dao.isTransactionActive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Commits the shards in order. If one fails, the following ones are
+	 * rolled back and the error is thrown.
+	 */
+	public void commit() {
+		RuntimeException error = null;
+		for (D dao : shards) {
+			if (error != null) {
+				dao.rollback();
+				continue;
+			}
+			try {
+				dao.commit();
+			} catch (RuntimeException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	public void rollback() {
+		for (D dao : shards) {
+			dao.rollback();
+		}
+	}
+	
+	
+	// == orden en memoria
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Comparator<T> byId() {
+		return Comparator.comparing(entity -> (Comparable) getId(entity));
+	}
+	
+	// mismo orden que la base de datos: los null van despues de los demas valores
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Comparator<T> comparator(Sort sort) {
+		D dao = shards.get(0);
+		ManagedType<T> type = dao.getEntityManagerFactory().getMetamodel().managedType(dao.getPersistentClass());
+		Comparator<T> comparator = null;
+		for (Sort.Order order : sort.getOrders()) {
+			Member member = type.getSingularAttribute(order.getAttribute()).getJavaMember();
+			Comparator<T> siguiente = Comparator.comparing(entity -> (Comparable) read(member, entity), 
+					Comparator.nullsLast(Comparator.naturalOrder()));
+			if (!order.isAscending()) {
+				siguiente = siguiente.reversed();
+			}
+			comparator = comparator == null ? siguiente : comparator.thenComparing(siguiente);
+		}
+		return comparator;
+	}
+	
+	private static Object read(Member member, Object entity) {
+		try {
+			if (member instanceof Field) {
+				Field field = (Field) member;
+				field.setAccessible(true);
+				return field.get(entity);
+			}
+			Method method = (Method) member;
+			method.setAccessible(true);
+			return method.invoke(entity);
+		} catch (Exception e) {
+			throw new PersistenceException("Cannot read " + member.getName() + ": " + e.getMessage(), e);
+		}
+	}
+	
+}
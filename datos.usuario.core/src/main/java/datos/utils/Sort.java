@@ -0,0 +1,82 @@
+package datos.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Order of a search result.
+ * <pre>
+ *   Sort.asc("nombre").thenDesc("codigo")
+ * </pre>
+ */
+public class Sort {
+
+	public static class Order {
+		
+		private final String attribute;
+		private final boolean ascending;
+		
+		Order(String attribute, boolean ascending) {
+			this.attribute = attribute;
+			this.ascending = ascending;
+		}
+		
+		public String getAttribute() {
+			return attribute;
+		}
+		
+		public boolean isAscending() {
+			return ascending;
+		}
+	}
+	
+	private final List<Order> orders = new ArrayList<Order>();
+	
+	
+	// == construccion
+	
+	public static Sort unsorted() {
+		return new Sort();
+	}
+	
+	public static Sort asc(String attribute) {
+		return new Sort().thenAsc(attribute);
+	}
+	
+	public static Sort desc(String attribute) {
+		return new Sort().thenDesc(attribute);
+	}
+	
+	public Sort thenAsc(String attribute) {
+		orders.add(new Order(attribute, true));
+		return this;
+	}
+	
+	public Sort thenDesc(String attribute) {
+		orders.add(new Order(attribute, false));
+		return this;
+	}
+	
+	
+	// == consulta
+	
+	public List<Order> getOrders() {
+		return Collections.unmodifiableList(orders);
+	}
+	
+	public String shape() {
+		StringBuilder shape = new StringBuilder();
+		for (Order order : orders) {
+			shape.append(shape.length() == 0 ? "" : ", ")
+					.append(order.attribute).append(order.ascending ? " asc" : " desc");
+		}
+		return shape.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return "Sort[" + shape() + "]";
+	}
+	
+}
@@ -0,0 +1,378 @@
+package datos.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceUnitUtil;
+
+/**
+ * Write-behind layer over GenericJpaDAO.update: updates are queued and
+ * written later in one transaction, on an interval or when
+ * <code>flushThreshold</code> entities are pending. Repeated updates of the
+ * same id before a flush are merged (the last one wins), so each entity is
+ * written once per flush.
+ * <p>
+ * The queue keeps a copy of the entity taken when the update is queued. At
+ * flush the current row is read again and the copy is written over it with
+ * the current version, so the caller may keep editing and queueing the same
+ * object: the queue does not check the version the caller read (the last
+ * writer wins).
+ * <p>
+ * Each update gets a future completed with the written entity when its flush
+ * commits, or completed exceptionally if it fails (e.g. the row no longer
+ * exists). Updates are only durable after the flush: a crash loses the
+ * pending ones. When <code>capacity</code> different ids are pending, callers
+ * block until a flush makes room. If a flush fails, its entities are written
+ * one transaction each, so only the failing ones fail.
+ * <p>
+ * The DAO is used only by the flush thread and must not be shared.
+ *
+ * @param <T>
+ * @param <ID>
+ */
+public class WriteBehindQueue<T, ID extends Serializable> {
+
+	private final GenericJpaDAO<T, ID> dao;
+	
+	private final PersistenceUnitUtil util;
+	
+	private final int capacity;
+	
+	private final int flushThreshold;
+	
+	private final ScheduledExecutorService scheduler;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition notFull = lock.newCondition();
+	
+	private final ReentrantLock flushLock = new ReentrantLock();
+	
+	private LinkedHashMap<ID, Entry<T>> pending = new LinkedHashMap<ID, Entry<T>>();
+	
+	private volatile boolean closed = false;
+	
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedEntities = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong failedUpdates = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private volatile long lastFlushNanos = 0;
+	private volatile RuntimeException lastFailure = null;
+	
+	
+	// == constructores
+	
+	public WriteBehindQueue(GenericJpaDAO<T, ID> dao, int capacity, int flushThreshold, long flushIntervalMillis) {
+		if (capacity <= 0 || flushThreshold <= 0) {
+			throw new IllegalArgumentException("capacity and flushThreshold must be positive");
+		}
+		this.dao = dao;
+		this.util = dao.getEntityManagerFactory().getPersistenceUnitUtil();
+		this.capacity = capacity;
+		this.flushThreshold = Math.min(flushThreshold, capacity);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "WriteBehindQueue-" + dao.getPersistentClassName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::flushQuietly, 
+				flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	// == actualizaciones
+	
+	/**
+	 * Queues the update, waiting while the queue is full. Updates of the same
+	 * id merged before a flush share the future.
+	 */
+	public CompletableFuture<T> update(T entity) throws InterruptedException {
+		lock.lock();
+		try {
+			ID id = idOf(entity);
+			while (!pending.containsKey(id) && pending.size() >= capacity) {
+				checkOpen();
+				notFull.await();
+			}
+			return enqueue(id, entity);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues the update, waiting at most <code>timeout</code> while the queue is
+	 * full. Returns <code>null</code> if the update was not queued.
+	 */
+	public CompletableFuture<T> offer(T entity, long timeout, TimeUnit unit) throws InterruptedException {
+		long restante = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			ID id = idOf(entity);
+			while (!pending.containsKey(id) && pending.size() >= capacity) {
+				checkOpen();
+				if (restante <= 0) {
+					return null;
+				}
+				restante = notFull.awaitNanos(restante);
+			}
+			return enqueue(id, entity);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private ID idOf(T entity) {
+		ID id = (ID) util.getIdentifier(entity);
+		if (id == null) {
+			throw new IllegalArgumentException("Entity without id: " + entity);
+		}
+		return id;
+	}
+	
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("WriteBehindQueue is closed");
+		}
+	}
+	
+	private CompletableFuture<T> enqueue(ID id, T entity) {
+		checkOpen();
+		// copia: el llamador puede seguir modificando su objeto
+		T estado = dao.copy(entity);
+		Entry<T> entry = pending.get(id);
+		if (entry == null) {
+			entry = new Entry<T>(estado);
+			pending.put(id, entry);
+		} else {
+			entry.state = estado;
+			merged.incrementAndGet();
+		}
+		submitted.incrementAndGet();
+		if (pending.size() == flushThreshold) {
+			scheduler.execute(this::flushQuietly);
+		}
+		return entry.future;
+	}
+	
+	
+	// == flush
+	
+	/**
+	 * Writes the pending updates now. Returns the number of entities written.
+	 */
+	public int flush() {
+		flushLock.lock();
+		try {
+			List<Map.Entry<ID, Entry<T>>> batch;
+			lock.lock();
+			try {
+				if (pending.isEmpty()) {
+					return 0;
+				}
+				batch = new ArrayList<Map.Entry<ID, Entry<T>>>(pending.entrySet());
+				pending = new LinkedHashMap<ID, Entry<T>>();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			
+			long inicio = System.nanoTime();
+			int escritos;
+			try {
+				escritos = write(batch);
+			} catch (RuntimeException e) {
+				failedFlushes.incrementAndGet();
+				lastFailure = e;
+				escritos = updateOneByOne(batch);
+			}
+			lastFlushNanos = System.nanoTime() - inicio;
+			totalFlushNanos.addAndGet(lastFlushNanos);
+			flushes.incrementAndGet();
+			flushedEntities.addAndGet(escritos);
+			return escritos;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes the batch in one transaction and completes its futures. On error
+	 * rolls back and throws, leaving the futures pending.
+	 */
+	private int write(List<Map.Entry<ID, Entry<T>>> batch) {
+		List<T> escritos;
+		try {
+			dao.beginTransaction();
+			escritos = apply(batch);
+			dao.commit();
+		} catch (RuntimeException e) {
+			dao.rollback();
+			throw e;
+		} finally {
+			dao.clear();
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).getValue().future.complete(escritos.get(i));
+		}
+		return batch.size();
+	}
+	
+	// lee las filas actuales y escribe encima las copias encoladas
+	private List<T> apply(List<Map.Entry<ID, Entry<T>>> batch) {
+		List<ID> ids = new ArrayList<ID>(batch.size());
+		for (Map.Entry<ID, Entry<T>> entry : batch) {
+			ids.add(entry.getKey());
+		}
+		List<T> actuales = dao.findByIds(ids);
+		List<T> escritos = new ArrayList<T>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			T actual = actuales.get(i);
+			if (actual == null) {
+				throw new EntityNotFoundException("No " + dao.getPersistentClassName() + " with id " + ids.get(i));
+			}
+			T estado = batch.get(i).getValue().state;
+			dao.copyVersion(actual, estado);
+			escritos.add(dao.update(estado));
+		}
+		return escritos;
+	}
+	
+	private int updateOneByOne(List<Map.Entry<ID, Entry<T>>> batch) {
+		int escritos = 0;
+		for (Map.Entry<ID, Entry<T>> entry : batch) {
+			try {
+				escritos += write(Collections.singletonList(entry));
+			} catch (RuntimeException e) {
+				failedUpdates.incrementAndGet();
+				lastFailure = e;
+				entry.getValue().future.completeExceptionally(e);
+			}
+		}
+		return escritos;
+	}
+	
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			lastFailure = e;
+		}
+	}
+	
+	/**
+	 * Stops the periodic flush and writes the pending updates.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+	
+	/**
+	 * Registers a JVM shutdown hook that flushes the pending updates.
+	 */
+	public Thread registerShutdownHook() {
+		Thread hook = new Thread(this::close, "WriteBehindQueue-shutdown");
+		Runtime.getRuntime().addShutdownHook(hook);
+		return hook;
+	}
+	
+	
+	// == estadisticas
+	
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+	
+	/**
+	 * Updates merged with a pending update of the same id.
+	 */
+	public long getMergedCount() {
+		return merged.get();
+	}
+	
+	public long getFlushCount() {
+		return flushes.get();
+	}
+	
+	public long getFlushedEntityCount() {
+		return flushedEntities.get();
+	}
+	
+	public long getFailedFlushCount() {
+		return failedFlushes.get();
+	}
+	
+	public long getFailedUpdateCount() {
+		return failedUpdates.get();
+	}
+	
+	public RuntimeException getLastFailure() {
+		return lastFailure;
+	}
+	
+	public double getLastFlushMillis() {
+		return lastFlushNanos / 1e6;
+	}
+	
+	public double getAverageFlushMillis() {
+		long count = flushes.get();
+		return count == 0 ? 0.0 : totalFlushNanos.get() / 1e6 / count;
+	}
+	
+	@Override
+	public String toString() {
+		return "WriteBehindQueue[depth=" + getQueueDepth() + ", submitted=" + getSubmittedCount() 
+				+ ", merged=" + getMergedCount() + ", flushes=" + getFlushCount() 
+				+ ", flushed=" + getFlushedEntityCount() + ", failedUpdates=" + getFailedUpdateCount() 
+				+ ", avgFlushMs=" + getAverageFlushMillis() + "]";
+	}
+	
+	
+	private static class Entry<T> {
+		T state;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		Entry(T state) {
+			this.state = state;
+		}
+	}
+	
+}
@@ -0,0 +1,159 @@
+package datos.modelo.pruebas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import datos.dao.DaoUsuario;
+import datos.modelo.AbstractUsuario;
+import datos.modelo.Usuario;
+import datos.utils.ChangeEvent;
+import datos.utils.ChangeEventListener;
+import datos.utils.ChangePublisher;
+import datos.utils.JpaUtils;
+
+/**
+ * Eventos de ChangeEventListener/ChangePublisher sobre test_PU: solo se
+ * publican los cambios confirmados.
+ */
+public class ChangeEventsTest {
+
+	private EntityManagerFactory factory;
+
+	private DaoUsuario dao;
+
+	private final List<ChangeEvent> publicados = new ArrayList<ChangeEvent>();
+
+	private final List<ChangeEvent> escritos = new ArrayList<ChangeEvent>();
+
+	private final Consumer<ChangeEvent> alPublicar = publicados::add;
+
+	private final Consumer<ChangeEvent> alEscribir = escritos::add;
+
+	@Before
+	public void suscribir() {
+		factory = JpaUtils.getEntityManagerFactory("test_PU");
+		assertTrue(ChangeEventListener.isInstalled(factory));
+		dao = DatosPrueba.dao(factory);
+		dao.deleteAll();
+		ChangePublisher.getDefault().addListener(alPublicar);
+		ChangePublisher.getDefault().addFlushListener(alEscribir);
+	}
+
+	@After
+	public void cancelar() {
+		ChangePublisher.getDefault().removeListener(alPublicar);
+		ChangePublisher.getDefault().removeFlushListener(alEscribir);
+		if (dao.isTransactionActive()) {
+			dao.rollback();
+		}
+		dao.deleteAll();
+	}
+
+	@Test
+	public void publicaAlConfirmar() {
+		dao.beginTransaction();
+		dao.create(DatosPrueba.usuario("e1", "1", "ana"));
+		dao.flush();
+		assertEquals(0, publicados.size());
+		dao.commit();
+
+		assertEquals(1, publicados.size());
+		ChangeEvent evento = publicados.get(0);
+		assertEquals(ChangeEvent.Type.CREATED, evento.getType());
+		assertEquals("e1", evento.getId());
+		assertEquals(ChangeEventListener.unitName(factory), evento.getUnit());
+		assertEquals("ana", evento.getAfter().get("nombre"));
+	}
+
+	@Test
+	public void actualizacionConValoresAnteriores() {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("e1", "1", "ana")));
+		publicados.clear();
+
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.find(Usuario.class, "e1").setNombre("eva");
+		em.getTransaction().commit();
+		em.close();
+
+		ChangeEvent evento = publicados.get(0);
+		assertEquals(ChangeEvent.Type.UPDATED, evento.getType());
+		assertEquals("ana", evento.getBefore().get("nombre"));
+		assertEquals("eva", evento.getAfter().get("nombre"));
+		assertTrue(evento.changed("nombre"));
+		assertFalse(evento.changed("direccion"));
+	}
+
+	@Test
+	public void noPublicaAlDeshacer() {
+		dao.beginTransaction();
+		dao.create(DatosPrueba.usuario("e2", "2", "luis"));
+		dao.flush();
+		dao.rollback();
+		assertEquals(0, publicados.size());
+		// los listeners de escritura si lo vieron
+		assertEquals(1, escritos.size());
+
+		// ni se cuelan en la siguiente transaccion confirmada
+		dao.beginTransaction();
+		dao.create(DatosPrueba.usuario("e3", "3", "rosa"));
+		dao.commit();
+		assertEquals(1, publicados.size());
+		assertEquals("e3", publicados.get(0).getId());
+	}
+
+	@Test
+	public void noPublicaUpsertsDeshechos() {
+		dao.beginTransaction();
+		dao.upsert(DatosPrueba.usuario("e4", "4", "olga"));
+		dao.rollback();
+		assertEquals(0, publicados.size());
+		assertNull(dao.findById("e4"));
+
+		dao.upsert(DatosPrueba.usuario("e4", "4", "olga"));
+		assertEquals(1, publicados.size());
+		assertEquals(ChangeEvent.Type.CREATED, publicados.get(0).getType());
+	}
+
+	@Test
+	public void borradoMasivoPorBloquesPublicaCadaId() {
+		List<AbstractUsuario> usuarios = new ArrayList<AbstractUsuario>();
+		for (int i = 0; i < 12; i++) {
+			usuarios.add(DatosPrueba.usuario("b" + i, "" + i, "n"));
+		}
+		dao.createAll(usuarios);
+		publicados.clear();
+
+		assertEquals(12, dao.deleteAll(5));
+		assertEquals(12, publicados.size());
+		for (ChangeEvent evento : publicados) {
+			assertEquals(ChangeEvent.Type.REMOVED, evento.getType());
+		}
+	}
+
+	@Test
+	public void borradoMasivoPublicaUnReinicio() {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("b1", "1", "n")));
+		publicados.clear();
+
+		dao.deleteAll();
+		assertEquals(1, publicados.size());
+		assertEquals(ChangeEvent.Type.CLEARED, publicados.get(0).getType());
+		assertEquals(Usuario.class, publicados.get(0).getEntityClass());
+	}
+
+}
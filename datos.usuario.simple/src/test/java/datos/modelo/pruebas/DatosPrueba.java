@@ -5,6 +5,7 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
 
+import datos.dao.DaoUsuario;
 import datos.modelo.Usuario;
 
 public class DatosPrueba {
@@ -59,4 +60,26 @@ public class DatosPrueba {
 
 	}	
 	
+	
+	// -- para las pruebas de unidad
+	
+	public static Usuario usuario( String codigo, String numDocumento, String nombre ) {
+		Usuario usuario = new Usuario();
+		usuario.setCodigo(codigo);
+		usuario.setNumDocumento(numDocumento);
+		usuario.setNombre(nombre);
+		usuario.setDireccion("");
+		return usuario;
+	}
+	
+	/**
+	 * DaoUsuario de la unidad, con Usuario como clase persistente.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static DaoUsuario dao( EntityManagerFactory factory ) {
+		DaoUsuario dao = new DaoUsuario(factory);
+		dao.setPersistentClass((Class) Usuario.class);
+		return dao;
+	}
+	
 }
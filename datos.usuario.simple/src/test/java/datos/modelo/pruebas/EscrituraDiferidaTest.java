@@ -0,0 +1,176 @@
+package datos.modelo.pruebas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import datos.dao.DaoUsuario;
+import datos.modelo.AbstractUsuario;
+import datos.utils.GroupCommitWriter;
+import datos.utils.JpaUtils;
+import datos.utils.WriteBehindQueue;
+
+/**
+ * Futuros de GroupCommitWriter y WriteBehindQueue sobre test_PU: se completan
+ * cuando su lote se confirma y solo fallan las solicitudes que fallan.
+ */
+public class EscrituraDiferidaTest {
+
+	private EntityManagerFactory factory;
+
+	private DaoUsuario dao;
+
+	@Before
+	public void limpiar() {
+		factory = JpaUtils.getEntityManagerFactory("test_PU");
+		dao = DatosPrueba.dao(factory);
+		dao.deleteAll();
+	}
+
+	@After
+	public void borrar() {
+		dao.deleteAll();
+	}
+
+
+	// == group commit
+
+	@Test
+	public void groupCommitCompletaLosFuturosDeVariosHilos() throws Exception {
+		GroupCommitWriter<AbstractUsuario, String> writer =
+				new GroupCommitWriter<AbstractUsuario, String>(DatosPrueba.dao(factory), 8, 50, 100);
+		ExecutorService hilos = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<CompletableFuture<AbstractUsuario>>> enviados =
+					new ArrayList<Future<CompletableFuture<AbstractUsuario>>>();
+			for (int i = 0; i < 40; i++) {
+				AbstractUsuario usuario = DatosPrueba.usuario(String.format("g%02d", i), "d" + i, "n" + i);
+				enviados.add(hilos.submit(() -> writer.submitCreate(usuario)));
+			}
+			for (Future<CompletableFuture<AbstractUsuario>> enviado : enviados) {
+				assertNotNull(enviado.get().get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			hilos.shutdown();
+			writer.close();
+		}
+		assertEquals(40, dao.count());
+		assertEquals(40, writer.getRequestCount());
+		assertTrue(writer.getBatchCount() < 40);
+	}
+
+	@Test
+	public void groupCommitSoloFallaLaSolicitudQueFalla() throws Exception {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("g01", "d1", "existente")));
+
+		GroupCommitWriter<AbstractUsuario, String> writer =
+				new GroupCommitWriter<AbstractUsuario, String>(DatosPrueba.dao(factory), 10, 200, 100);
+		CompletableFuture<AbstractUsuario> antes = writer.submitCreate(DatosPrueba.usuario("g00", "d0", "n"));
+		CompletableFuture<AbstractUsuario> duplicado = writer.submitCreate(DatosPrueba.usuario("g01", "d1", "n"));
+		CompletableFuture<AbstractUsuario> despues = writer.submitCreate(DatosPrueba.usuario("g02", "d2", "n"));
+		writer.close();
+
+		assertEquals("g00", antes.get(10, TimeUnit.SECONDS).getCodigo());
+		assertEquals("g02", despues.get(10, TimeUnit.SECONDS).getCodigo());
+		assertFalla(duplicado);
+		assertEquals(1, writer.getFailedRequestCount());
+		assertEquals(3, dao.count());
+		assertEquals("existente", dao.findById("g01").getNombre());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void groupCommitCerradoNoAceptaSolicitudes() throws Exception {
+		GroupCommitWriter<AbstractUsuario, String> writer =
+				new GroupCommitWriter<AbstractUsuario, String>(DatosPrueba.dao(factory), 10, 50, 100);
+		writer.close();
+		writer.submitCreate(DatosPrueba.usuario("g00", "d0", "n"));
+	}
+
+
+	// == write-behind
+
+	@Test
+	public void writeBehindUneLasActualizacionesDelMismoId() throws Exception {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("w1", "d1", "inicial")));
+		WriteBehindQueue<AbstractUsuario, String> cola =
+				new WriteBehindQueue<AbstractUsuario, String>(DatosPrueba.dao(factory), 100, 100, 60000);
+		try {
+			AbstractUsuario usuario = dao.findById("w1");
+			usuario.setNombre("primero");
+			CompletableFuture<AbstractUsuario> primero = cola.update(usuario);
+			usuario.setNombre("ultimo");
+			CompletableFuture<AbstractUsuario> ultimo = cola.update(usuario);
+			assertSame(primero, ultimo);
+			assertEquals("inicial", dao.findById("w1").getNombre());
+			assertTrue(!primero.isDone());
+
+			assertEquals(1, cola.flush());
+			assertEquals("ultimo", primero.get(10, TimeUnit.SECONDS).getNombre());
+			assertEquals(1, cola.getMergedCount());
+		} finally {
+			cola.close();
+		}
+		dao.getEntityManagerFactory().getCache().evictAll();
+		dao.clear();
+		assertEquals("ultimo", dao.findById("w1").getNombre());
+	}
+
+	@Test
+	public void writeBehindSoloFallaLaFilaQueNoExiste() throws Exception {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("w1", "d1", "n")));
+		WriteBehindQueue<AbstractUsuario, String> cola =
+				new WriteBehindQueue<AbstractUsuario, String>(DatosPrueba.dao(factory), 100, 100, 60000);
+		CompletableFuture<AbstractUsuario> existe;
+		CompletableFuture<AbstractUsuario> noExiste;
+		try {
+			existe = cola.update(DatosPrueba.usuario("w1", "d1", "cambiado"));
+			noExiste = cola.update(DatosPrueba.usuario("w9", "d9", "nadie"));
+			cola.flush();
+		} finally {
+			cola.close();
+		}
+		assertEquals("cambiado", existe.get(10, TimeUnit.SECONDS).getNombre());
+		assertFalla(noExiste);
+		assertEquals(1, cola.getFailedUpdateCount());
+	}
+
+	@Test
+	public void writeBehindEscribeAlCerrar() throws Exception {
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("w1", "d1", "n")));
+		WriteBehindQueue<AbstractUsuario, String> cola =
+				new WriteBehindQueue<AbstractUsuario, String>(DatosPrueba.dao(factory), 100, 100, 60000);
+		CompletableFuture<AbstractUsuario> pendiente = cola.update(DatosPrueba.usuario("w1", "d1", "al cerrar"));
+		cola.close();
+		assertEquals("al cerrar", pendiente.get(10, TimeUnit.SECONDS).getNombre());
+	}
+
+	private static void assertFalla(CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("the future should have failed");
+		} catch (ExecutionException e) {
+			// esperado
+		} catch (java.util.concurrent.TimeoutException e) {
+			fail("the future was not completed");
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package datos.modelo.pruebas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import datos.dao.DaoUsuario;
+import datos.dao.FiltroDocumentos;
+import datos.modelo.AbstractUsuario;
+import datos.utils.BloomFilter;
+import datos.utils.JpaUtils;
+
+/**
+ * BloomFilter y FiltroDocumentos sobre test_PU: nunca descartan un documento
+ * que existe.
+ */
+public class FiltroDocumentosTest {
+
+	private DaoUsuario dao;
+
+	private FiltroDocumentos filtro;
+
+	@Before
+	public void crearUsuarios() {
+		dao = DatosPrueba.dao(JpaUtils.getEntityManagerFactory("test_PU"));
+		dao.deleteAll();
+		List<AbstractUsuario> usuarios = new ArrayList<AbstractUsuario>();
+		for (int i = 0; i < 50; i++) {
+			usuarios.add(DatosPrueba.usuario("f" + i, "doc" + i, "n"));
+		}
+		dao.createAll(usuarios);
+	}
+
+	@After
+	public void cerrarFiltro() {
+		if (filtro != null) {
+			filtro.cerrar();
+		}
+		dao.deleteAll();
+	}
+
+
+	// == BloomFilter
+
+	@Test
+	public void bloomFilterSinFalsosNegativos() {
+		BloomFilter bloom = new BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			bloom.put("valor" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue("valor" + i, bloom.mightContain("valor" + i));
+		}
+		assertEquals(10000, bloom.getInsertions());
+
+		int falsosPositivos = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (bloom.mightContain("otro" + i)) {
+				falsosPositivos++;
+			}
+		}
+		// 1% esperado; holgura para no depender de la distribucion exacta
+		assertTrue("false positives: " + falsosPositivos, falsosPositivos < 300);
+	}
+
+	@Test
+	public void bloomFilterVacioNoContieneNada() {
+		BloomFilter bloom = new BloomFilter(100, 0.01);
+		assertFalse(bloom.mightContain("doc1"));
+	}
+
+
+	// == FiltroDocumentos
+
+	@Test
+	public void filtroContieneLosDocumentosExistentes() {
+		filtro = dao.construirFiltroDocumentos(1000, 0.01);
+		assertSame(filtro, dao.getFiltroDocumentos());
+		for (int i = 0; i < 50; i++) {
+			assertTrue(filtro.mightContain("doc" + i));
+			assertEquals("f" + i, dao.buscarPorNumDocumento("doc" + i).getCodigo());
+		}
+		assertNull(dao.buscarPorNumDocumento("nadie"));
+		assertFalse(dao.existePorNumDocumento("nadie"));
+	}
+
+	@Test
+	public void filtroAgregaLosUsuariosCreadosDespues() {
+		filtro = dao.construirFiltroDocumentos(1000, 0.01);
+		List<AbstractUsuario> nuevos = new ArrayList<AbstractUsuario>();
+		nuevos.add(DatosPrueba.usuario("f100", "nuevo100", "n"));
+		dao.createAll(nuevos);
+
+		// otro dao de la misma unidad comparte el filtro
+		DaoUsuario otro = DatosPrueba.dao(JpaUtils.getEntityManagerFactory("test_PU"));
+		otro.beginTransaction();
+		otro.create(DatosPrueba.usuario("f101", "nuevo101", "n"));
+		otro.commit();
+
+		assertTrue(filtro.mightContain("nuevo100"));
+		assertTrue(filtro.mightContain("nuevo101"));
+		assertEquals("f101", dao.buscarPorNumDocumento("nuevo101").getCodigo());
+		assertTrue(dao.existePorNumDocumento("nuevo100"));
+	}
+
+	@Test
+	public void filtroCerradoNoSeUsa() {
+		filtro = dao.construirFiltroDocumentos(1000, 0.01);
+		filtro.cerrar();
+		assertNull(dao.getFiltroDocumentos());
+
+		List<AbstractUsuario> nuevos = new ArrayList<AbstractUsuario>();
+		nuevos.add(DatosPrueba.usuario("f200", "nuevo200", "n"));
+		dao.createAll(nuevos);
+		assertEquals("f200", dao.buscarPorNumDocumento("nuevo200").getCodigo());
+	}
+
+}
@@ -0,0 +1,91 @@
+package datos.modelo.pruebas;
+
+import static datos.utils.FluentMap.Map;
+import static datos.utils.FluentMap.entry;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import datos.utils.JpaUtils;
+import datos.utils.ParameterBinder;
+import datos.utils.QueryParameter;
+
+/**
+ * Compara la memoria reservada por llamada al pasar los parametros de
+ * usuario.buscarPorNumDocumento con FluentMap y con un QueryParameter.
+ * Usa los bytes reservados por el hilo (com.sun.management.ThreadMXBean).
+ */
+public class MedirParametros {
+
+	static final QueryParameter<String> NUM_DOCUMENTO = QueryParameter.named("numDocumento", String.class);
+	
+	static final int CALENTAMIENTO = 20000;
+	
+	static final int LLAMADAS = 200000;
+	
+	static final com.sun.management.ThreadMXBean hilos = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	
+	public static void main(String[] args) {
+
+		// == Cargar los datos de prueba
+		
+		DatosPrueba.borrarDatosPrueba();
+		DatosPrueba.crearDatosPrueba();
+		
+		EntityManager manager = JpaUtils.getEntityManager("test_PU");
+		Query consulta = manager.createNamedQuery("usuario.buscarPorNumDocumento");
+		
+		// == Solo el paso de parametros
+		
+		medir("FluentMap      ", LLAMADAS, i -> {
+			Map<String, Object> params = Map( entry("numDocumento", (Object) documento(i)) );
+			for (String nombre : params.keySet()) {
+				consulta.setParameter(nombre, params.get(nombre));
+			}
+		});
+		medir("QueryParameter ", LLAMADAS, i -> NUM_DOCUMENTO.bind(consulta, documento(i)));
+		
+		// == Consulta completa
+		
+		medir("consulta + Map ", LLAMADAS / 20, i -> JpaUtils.executeSingleResultNamedQuery(manager, 
+				"usuario.buscarPorNumDocumento", Map( entry("numDocumento", (Object) documento(i)) )));
+		ParameterBinder binder = query -> NUM_DOCUMENTO.bind(query, "101");
+		medir("consulta + slot", LLAMADAS / 20, i -> JpaUtils.executeSingleResultNamedQuery(manager, 
+				"usuario.buscarPorNumDocumento", binder));
+		
+		System.out.println(".. done");
+	}
+	
+	// documentos constantes: no se mide la creacion de Strings
+	private static final String[] DOCUMENTOS = { "101", "102", "201", "202" };
+	
+	private static String documento(int i) {
+		return DOCUMENTOS[i & 3];
+	}
+	
+	interface Llamada {
+		void ejecutar(int i);
+	}
+	
+	private static void medir(String nombre, int llamadas, Llamada llamada) {
+		for (int i = 0; i < CALENTAMIENTO; i++) {
+			llamada.ejecutar(i);
+		}
+		long hilo = Thread.currentThread().getId();
+		long bytes = hilos.getThreadAllocatedBytes(hilo);
+		long inicio = System.nanoTime();
+		for (int i = 0; i < llamadas; i++) {
+			llamada.ejecutar(i);
+		}
+		long tiempo = System.nanoTime() - inicio;
+		bytes = hilos.getThreadAllocatedBytes(hilo) - bytes;
+		System.out.printf("%s : %8.1f bytes/llamada  %8.1f ns/llamada%n", 
+				nombre, (double) bytes / llamadas, (double) tiempo / llamadas);
+	}
+
+}
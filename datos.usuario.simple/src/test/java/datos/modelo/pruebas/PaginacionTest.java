@@ -0,0 +1,165 @@
+package datos.modelo.pruebas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import datos.dao.DaoUsuario;
+import datos.modelo.AbstractUsuario;
+import datos.utils.JpaUtils;
+import datos.utils.Page;
+
+/**
+ * Paginacion por keyset, streaming y findByIds de GenericJpaDAO sobre test_PU.
+ */
+public class PaginacionTest {
+
+	private static final int USUARIOS = 25;
+
+	private DaoUsuario dao;
+
+	private List<String> codigos;
+
+	@Before
+	public void crearUsuarios() {
+		dao = DatosPrueba.dao(JpaUtils.getEntityManagerFactory("test_PU"));
+		dao.deleteAll();
+		codigos = new ArrayList<String>();
+		List<AbstractUsuario> usuarios = new ArrayList<AbstractUsuario>();
+		for (int i = 0; i < USUARIOS; i++) {
+			String codigo = String.format("p%02d", i);
+			codigos.add(codigo);
+			usuarios.add(DatosPrueba.usuario(codigo, "d" + i, "nombre " + i));
+		}
+		dao.createAll(usuarios);
+	}
+
+	@After
+	public void borrarUsuarios() {
+		if (dao.isTransactionActive()) {
+			dao.rollback();
+		}
+		dao.deleteAll();
+	}
+
+
+	// == keyset
+
+	@Test
+	public void recorrePaginasEnOrdenSinRepetir() {
+		List<String> leidos = new ArrayList<String>();
+		List<Integer> tamanos = new ArrayList<Integer>();
+		Page<AbstractUsuario, String> pagina = dao.findFirstPage(7);
+		while (true) {
+			tamanos.add(pagina.size());
+			for (AbstractUsuario usuario : pagina.getContent()) {
+				leidos.add(usuario.getCodigo());
+			}
+			if (!pagina.hasNext()) {
+				break;
+			}
+			pagina = dao.findPage(pagina.getNextId(), 7);
+		}
+		assertEquals(codigos, leidos);
+		assertEquals(Arrays.asList(7, 7, 7, 4), tamanos);
+	}
+
+	@Test
+	public void insercionAntesDelCursorNoDesplazaLasPaginas() {
+		Page<AbstractUsuario, String> primera = dao.findFirstPage(10);
+		assertEquals("p09", primera.getNextId());
+
+		// con offset la fila nueva desplazaria la pagina siguiente y p09 se leeria dos veces
+		dao.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("p00a", "dx", "nuevo")));
+
+		Page<AbstractUsuario, String> segunda = dao.findPage(primera.getNextId(), 10);
+		assertEquals("p10", segunda.getContent().get(0).getCodigo());
+		assertEquals("p19", segunda.getNextId());
+	}
+
+	@Test
+	public void ultimaPaginaVacia() {
+		Page<AbstractUsuario, String> pagina = dao.findPage("p24", 5);
+		assertEquals(0, pagina.size());
+		assertFalse(pagina.hasNext());
+		assertEquals("p24", pagina.getNextId());
+	}
+
+
+	// == streaming
+
+	@Test
+	public void streamLeeTodoEnOrdenPorBloques() {
+		try (Stream<AbstractUsuario> usuarios = dao.streamAll(4)) {
+			assertEquals(codigos, usuarios.map(AbstractUsuario::getCodigo).collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void streamFueraDeTransaccionNoAdministraLasEntidades() {
+		List<AbstractUsuario> leidos;
+		try (Stream<AbstractUsuario> usuarios = dao.streamAll(4)) {
+			leidos = usuarios.collect(Collectors.toList());
+		}
+		for (AbstractUsuario usuario : leidos) {
+			assertFalse(dao.getEntityManager().contains(usuario));
+		}
+	}
+
+	@Test
+	public void streamEnTransaccionConservaLosCambiosDelLlamador() {
+		dao.beginTransaction();
+		AbstractUsuario modificado = dao.findById("p03");
+		modificado.setNombre("cambiado");
+		try (Stream<AbstractUsuario> usuarios = dao.streamAll(4)) {
+			assertEquals(USUARIOS, usuarios.count());
+		}
+		assertTrue(dao.getEntityManager().contains(modificado));
+		dao.commit();
+
+		assertEquals("cambiado", dao.findById("p03").getNombre());
+	}
+
+
+	// == findByIds
+
+	@Test
+	public void findByIdsConservaElOrdenYDevuelveNullEnLasFaltas() {
+		dao.setInListSize(2);
+		List<AbstractUsuario> usuarios = dao.findByIds(Arrays.asList("p10", "nadie", "p02", null, "p10", "p24"));
+
+		assertEquals(6, usuarios.size());
+		assertEquals("p10", usuarios.get(0).getCodigo());
+		assertNull(usuarios.get(1));
+		assertEquals("p02", usuarios.get(2).getCodigo());
+		assertNull(usuarios.get(3));
+		assertSame(usuarios.get(0), usuarios.get(4));
+		assertEquals("p24", usuarios.get(5).getCodigo());
+	}
+
+	@Test
+	public void findByIdsDevuelveLaEntidadAdministrada() {
+		dao.beginTransaction();
+		AbstractUsuario administrado = dao.findById("p05");
+		administrado.setNombre("sin escribir");
+		JpaUtils.getEntityManagerFactory("test_PU").getCache().evictAll();
+
+		List<AbstractUsuario> usuarios = dao.findByIds(Arrays.asList("p04", "p05"));
+		assertSame(administrado, usuarios.get(1));
+		assertEquals("sin escribir", usuarios.get(1).getNombre());
+		dao.rollback();
+	}
+
+}
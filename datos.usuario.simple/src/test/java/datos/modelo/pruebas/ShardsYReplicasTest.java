@@ -0,0 +1,157 @@
+package datos.modelo.pruebas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import datos.dao.DaoUsuarioReplicado;
+import datos.dao.DaoUsuarioShards;
+import datos.modelo.AbstractUsuario;
+import datos.utils.JpaUtils;
+import datos.utils.Page;
+import datos.utils.ShardFunction;
+
+/**
+ * Mezcla de resultados de DaoUsuarioShards (shard1_PU y shard2_PU) y lectura
+ * con recuperacion en el primario de DaoUsuarioReplicado (test_PU y replica1_PU).
+ */
+public class ShardsYReplicasTest {
+
+	private DaoUsuarioShards shards;
+
+	private DaoUsuarioReplicado replicado;
+
+	@Before
+	public void conectar() {
+		EntityManagerFactory sucursal100 = JpaUtils.getEntityManagerFactory("shard1_PU");
+		EntityManagerFactory sucursal200 = JpaUtils.getEntityManagerFactory("shard2_PU");
+		shards = new DaoUsuarioShards(Arrays.asList(sucursal100, sucursal200), DatosPrueba::dao,
+				ShardFunction.prefix("-", "100", "200"));
+		shards.deleteAll();
+
+		EntityManagerFactory primario = JpaUtils.getEntityManagerFactory("test_PU");
+		EntityManagerFactory replica = JpaUtils.getEntityManagerFactory("replica1_PU");
+		replicado = new DaoUsuarioReplicado(primario, Arrays.asList(replica), DatosPrueba::dao);
+		replicado.deleteAll();
+		replicado.getReplicas().get(0).deleteAll();
+	}
+
+	@After
+	public void cerrar() {
+		shards.deleteAll();
+		shards.close();
+		replicado.deleteAll();
+		replicado.getReplicas().get(0).deleteAll();
+	}
+
+	// == shards
+
+	private void crearEnShards() {
+		shards.beginTransaction();
+		for (String codigo : new String[] { "200-02", "100-03", "200-01", "100-01", "100-02", "200-03" }) {
+			shards.create(DatosPrueba.usuario(codigo, "d" + codigo, "n"));
+		}
+		shards.commit();
+	}
+
+	@Test
+	public void cadaUsuarioVaAlShardDeSuSucursal() {
+		crearEnShards();
+		assertEquals(6, shards.count());
+		assertEquals(Arrays.asList(3L, 3L), shards.scatter(dao -> dao.count()));
+		assertEquals(0, shards.shardOf("100-01"));
+		assertEquals("d200-03", shards.findById("200-03").getNumDocumento());
+	}
+
+	@Test
+	public void paginasMezclanLosShardsEnOrden() {
+		crearEnShards();
+		List<String> leidos = new ArrayList<String>();
+		Page<AbstractUsuario, String> pagina = shards.findFirstPage(4);
+		assertEquals(4, pagina.size());
+		while (true) {
+			for (AbstractUsuario usuario : pagina.getContent()) {
+				leidos.add(usuario.getCodigo());
+			}
+			if (!pagina.hasNext()) {
+				break;
+			}
+			pagina = shards.findPage(pagina.getNextId(), 4);
+		}
+		assertEquals(Arrays.asList("100-01", "100-02", "100-03", "200-01", "200-02", "200-03"), leidos);
+	}
+
+	@Test
+	public void findByIdsEntreShardsConservaElOrden() {
+		crearEnShards();
+		List<AbstractUsuario> usuarios = shards.findByIds(Arrays.asList("200-03", "100-09", "100-01", null));
+		assertEquals("200-03", usuarios.get(0).getCodigo());
+		assertNull(usuarios.get(1));
+		assertEquals("100-01", usuarios.get(2).getCodigo());
+		assertNull(usuarios.get(3));
+	}
+
+	@Test
+	public void streamRecorreTodosLosShards() {
+		crearEnShards();
+		try (Stream<AbstractUsuario> usuarios = shards.streamAll(2)) {
+			assertEquals(6, usuarios.map(AbstractUsuario::getCodigo).collect(Collectors.toSet()).size());
+		}
+	}
+
+	@Test
+	public void buscaElDocumentoEnTodosLosShards() {
+		crearEnShards();
+		assertEquals("200-01", shards.buscarPorNumDocumento("d200-01").getCodigo());
+		assertFalse(shards.existePorNumDocumento("nadie"));
+	}
+
+
+	// == replicas
+
+	@Test
+	public void leeDeLaReplica() {
+		replicado.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("300-01", "301", "julia")));
+		// la replica aun no tiene la fila: la lectura no fue al primario
+		assertNull(replicado.findById("300-01"));
+		assertEquals(1, replicado.getReplicaReadCount());
+	}
+
+	@Test
+	public void leeDelPrimarioDespuesDeEscribir() {
+		replicado.setStickyMillis(60000);
+		replicado.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("300-01", "301", "julia")));
+		assertEquals("julia", replicado.findById("300-01").getNombre());
+		assertEquals(0, replicado.getReplicaReadCount());
+	}
+
+	@Test
+	public void siLaReplicaFallaLeeDelPrimario() {
+		replicado.createAll(Arrays.<AbstractUsuario>asList(DatosPrueba.usuario("300-01", "301", "julia")));
+		long primario = replicado.getPrimaryReadCount();
+
+		AbstractUsuario usuario = replicado.read(dao -> {
+			if (dao != replicado.getPrimary()) {
+				throw new PersistenceException("replica caida");
+			}
+			return dao.findById("300-01");
+		});
+		assertEquals("julia", usuario.getNombre());
+		assertEquals(primario + 1, replicado.getPrimaryReadCount());
+		assertEquals(0, replicado.getReplicaReadCount());
+	}
+
+}
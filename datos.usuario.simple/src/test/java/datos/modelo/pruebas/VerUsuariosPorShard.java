@@ -0,0 +1,63 @@
+package datos.modelo.pruebas;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManagerFactory;
+
+import datos.dao.DaoUsuario;
+import datos.dao.DaoUsuarioShards;
+import datos.modelo.AbstractUsuario;
+import datos.modelo.Usuario;
+import datos.utils.JpaUtils;
+import datos.utils.ShardFunction;
+
+
+public class VerUsuariosPorShard {
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void main(String[] args) {
+
+		// == Conectar a las bases de datos de cada sucursal
+		
+		EntityManagerFactory sucursal100 = JpaUtils.getEntityManagerFactory("shard1_PU");
+		EntityManagerFactory sucursal200 = JpaUtils.getEntityManagerFactory("shard2_PU");
+		
+		DaoUsuarioShards dao = new DaoUsuarioShards(Arrays.asList(sucursal100, sucursal200), factory -> {
+			DaoUsuario shard = new DaoUsuario(factory);
+			shard.setPersistentClass((Class) Usuario.class);
+			return shard;
+		}, ShardFunction.prefix("-", "100", "200"));
+		
+		// == Cargar los datos de prueba
+		
+		dao.beginTransaction();
+		dao.create(usuario("100-01", "101", "jose"));
+		dao.create(usuario("100-02", "102", "jaime"));
+		dao.create(usuario("200-01", "201", "jorge"));
+		dao.create(usuario("200-02", "202", "juan"));
+		dao.commit();
+		
+		// == Consultas de prueba
+		
+		System.out.println("usuarios: " + dao.count());
+		for ( AbstractUsuario usuario : dao.findAll() ) {
+			System.out.println( usuario.getCodigo() + " shard " + dao.shardOf(usuario.getCodigo()) 
+					+ " " + usuario.getNombre() );
+		}
+		System.out.println("200-02: " + dao.findById("200-02").getNombre());
+		System.out.println("documento 102: " + dao.buscarPorNumDocumento("102").getNombre());
+		
+		dao.close();
+		System.out.println(".. done");
+	}
+	
+	private static Usuario usuario(String codigo, String numDocumento, String nombre) {
+		Usuario usuario = new Usuario();
+		usuario.setCodigo(codigo);
+		usuario.setNumDocumento(numDocumento);
+		usuario.setNombre(nombre);
+		usuario.setDireccion("");
+		return usuario;
+	}
+
+}
@@ -0,0 +1,65 @@
+package datos.modelo.pruebas;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManagerFactory;
+
+import datos.dao.DaoUsuario;
+import datos.dao.DaoUsuarioReplicado;
+import datos.modelo.Usuario;
+import datos.utils.JpaUtils;
+import datos.utils.ReplicatedDAO.ReplicaSelection;
+
+
+public class VerUsuariosReplicados {
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void main(String[] args) {
+
+		// == Cargar los datos de prueba en el primario
+		
+		DatosPrueba.borrarDatosPrueba();
+		DatosPrueba.crearDatosPrueba();
+		
+		EntityManagerFactory primario = JpaUtils.getEntityManagerFactory("test_PU");
+		EntityManagerFactory replica = JpaUtils.getEntityManagerFactory("replica1_PU");
+		
+		DaoUsuarioReplicado dao = new DaoUsuarioReplicado(primario, Arrays.asList(replica), factory -> {
+			DaoUsuario usuarios = new DaoUsuario(factory);
+			usuarios.setPersistentClass((Class) Usuario.class);
+			return usuarios;
+		});
+		dao.setReplicaSelection(ReplicaSelection.LEAST_LATENCY);
+		
+		// == Replicar (aqui se copian los datos a mano)
+		
+		dao.getReplicas().get(0).upsertAll(dao.getPrimary().findAll());
+		
+		// == Consultas de prueba
+		
+		System.out.println("usuarios en la replica: " + dao.count());
+		System.out.println("documento 201: " + dao.buscarPorNumDocumento("201").getNombre());
+		
+		Usuario nuevo = new Usuario();
+		nuevo.setCodigo("300-01");
+		nuevo.setNumDocumento("301");
+		nuevo.setNombre("julia");
+		nuevo.setDireccion("");
+		
+		dao.beginTransaction();
+		dao.create(nuevo);
+		System.out.println("en la transaccion (primario): " + dao.findById("300-01").getNombre());
+		dao.commit();
+		
+		System.out.println("sin lectura de lo escrito (replica): " + dao.findById("300-01"));
+		dao.setStickyMillis(1000);
+		dao.beginTransaction();
+		dao.findById("300-01").setNombre("julia maria");
+		dao.commit();
+		System.out.println("con lectura de lo escrito (primario): " + dao.findById("300-01").getNombre());
+		
+		System.out.println(dao + " latencia media ns: " + dao.averageLatency(0));
+		System.out.println(".. done");
+	}
+
+}